@@ -0,0 +1,69 @@
+package bgu.spl.mics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The messages caused by one acknowledged broadcast (see
+ * {@link MessageBusImpl#sendAcknowledgedBroadcast}): the broadcast itself and,
+ * recursively, every message sent by a callback handling a message of the group.
+ * <p>
+ * The group counts the deliveries not handled yet. A delivery is counted before
+ * the message becomes visible to its receiver, and the sender holds one count of
+ * its own until it is done sending, so the count only reaches zero once the whole
+ * cascade was handled. The service that sent the broadcast is left out: it is not
+ * waited for, and what it sends does not join the group.
+ */
+class AckGroup {
+
+    private final Mailbox senderMailbox;
+    private final AtomicInteger pending;
+    private final List<Message> messages; // to forget once the group is done
+    private final Future<Void> done;
+
+    /**
+     * @param senderMailbox the mailbox of the service that sent the broadcast, or
+     *                      null if every receiver counts.
+     */
+    AckGroup(Mailbox senderMailbox) {
+        this.senderMailbox = senderMailbox;
+        this.pending = new AtomicInteger(1); // the sender's hold
+        this.messages = new CopyOnWriteArrayList<>();
+        this.done = new Future<>();
+    }
+
+    /**
+     * @return true if the deliveries to {@code mailbox} are part of the group.
+     */
+    boolean counts(Mailbox mailbox) {
+        return mailbox != senderMailbox;
+    }
+
+    void add(Message message) {
+        messages.add(message);
+    }
+
+    void acquire() {
+        pending.incrementAndGet();
+    }
+
+    /**
+     * @return true if this release handled the last delivery of the group.
+     */
+    boolean release() {
+        if (pending.decrementAndGet() == 0) {
+            done.resolve(null);
+            return true;
+        }
+        return false;
+    }
+
+    List<Message> messages() {
+        return messages;
+    }
+
+    Future<Void> future() {
+        return done;
+    }
+}
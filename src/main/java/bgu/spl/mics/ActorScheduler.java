@@ -0,0 +1,184 @@
+package bgu.spl.mics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs micro-services on a shared pool of worker threads instead of a thread per
+ * micro-service.
+ * <p>
+ * A micro-service is scheduled on the pool only when its mailbox has messages.
+ * A worker then handles a bounded batch of them and yields, so a busy service
+ * cannot starve the others; if more messages are waiting the service is simply
+ * scheduled again. A service runs on at most one worker at a time and handles its
+ * messages in the same order as {@link MicroService#run()}.
+ * <p>
+ * Callbacks must not block for long, since a blocked callback holds a worker.
+ * A micro-service that waits inside its callbacks should get its own thread.
+ */
+public class ActorScheduler {
+
+    private static final int IDLE = 0;
+    private static final int SCHEDULED = 1;
+    private static final int DONE = 2;
+
+    private final ExecutorService pool;
+    private final int batchSize;
+    // started services that did not terminate yet, plus one until awaitTermination is called
+    private final AtomicInteger running;
+    private final CountDownLatch allTerminated;
+    private final AtomicBoolean awaited;
+
+    /**
+     * @param workers   the number of worker threads.
+     * @param batchSize the maximal number of messages a service handles before
+     *                  yielding its worker.
+     */
+    public ActorScheduler(int workers, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.pool = new ForkJoinPool(workers, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        this.batchSize = batchSize;
+        this.running = new AtomicInteger(1);
+        this.allTerminated = new CountDownLatch(1);
+        this.awaited = new AtomicBoolean();
+    }
+
+    /**
+     * Starts {@code m}: registers and initializes it on a worker, then runs it
+     * whenever it has messages, until it terminates and is unregistered.
+     */
+    public void start(MicroService m) {
+        running.incrementAndGet();
+        pool.execute(new Actor(m)::begin);
+    }
+
+    /**
+     * Waits until every started micro-service has terminated.
+     * <p>
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitTermination() throws InterruptedException {
+        if (awaited.compareAndSet(false, true)) {
+            terminated();
+        }
+        allTerminated.await();
+    }
+
+    /**
+     * Stops the worker threads. Services that did not terminate are not run anymore.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Blocks until the workers stop after {@link #shutdown()}.
+     * <p>
+     * @return true if the workers stopped before the timeout elapsed.
+     */
+    public boolean awaitShutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    private void terminated() {
+        if (running.decrementAndGet() == 0) {
+            allTerminated.countDown();
+        }
+    }
+
+    /**
+     * Runs one micro-service. The state makes sure only one worker runs it at a
+     * time: a service is submitted to the pool only by moving it from IDLE to
+     * SCHEDULED, and the worker moves it back when it yields.
+     */
+    private final class Actor implements Runnable {
+        private final MicroService service;
+        private final AtomicInteger state;
+        private final List<Message> batch;
+
+        private Actor(MicroService service) {
+            this.service = service;
+            this.state = new AtomicInteger(SCHEDULED);
+            this.batch = new ArrayList<>(batchSize);
+        }
+
+        private void begin() {
+            try {
+                service.start();
+                if (!service.isTerminated()) {
+                    service.getMessageBus().setMessageListener(service, this::schedule);
+                }
+            } catch (RuntimeException e) {
+                abort(e);
+                return;
+            }
+            yieldWorker();
+        }
+
+        @Override
+        public void run() {
+            try {
+                service.runAvailable(batch, batchSize);
+            } catch (RuntimeException e) {
+                abort(e);
+                return;
+            }
+            yieldWorker();
+        }
+
+        /**
+         * Ends a service whose initialization or callback threw: it is unregistered,
+         * so its mailbox and channel cursors do not outlive it. The failure is then
+         * reported to the uncaught exception handler of the worker, as the death of
+         * its thread would be in the other modes, and not thrown, so the worker
+         * goes on running the other services.
+         */
+        private void abort(RuntimeException failure) {
+            try {
+                service.stop();
+            } finally {
+                finish();
+            }
+            Thread worker = Thread.currentThread();
+            worker.getUncaughtExceptionHandler().uncaughtException(worker, failure);
+        }
+
+        private void yieldWorker() {
+            if (service.isTerminated()) {
+                service.stop();
+                finish();
+                return;
+            }
+            state.set(IDLE);
+            // a message that arrived while we were running found the service SCHEDULED
+            if (service.getMessageBus().idle(service)) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            if (state.compareAndSet(IDLE, SCHEDULED)) {
+                try {
+                    pool.execute(this);
+                } catch (RejectedExecutionException e) {
+                    finish(); // shut down, called from a sender that must not fail because of it
+                }
+            }
+        }
+
+        private void finish() {
+            if (state.getAndSet(DONE) != DONE) {
+                terminated();
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package bgu.spl.mics;
+
+/**
+ * What a bounded {@link MessageBusImpl} mailbox does with a new message when it
+ * is full.
+ */
+public enum BackpressurePolicy {
+    /** The sender waits until the receiver takes a message. */
+    BLOCK,
+    /** The oldest pending message is dropped to make room for the new one. */
+    DROP_OLDEST,
+    /** The new message is dropped. */
+    DROP_NEWEST,
+    /**
+     * The newest pending message of the same type is replaced by the new one,
+     * which goes to the end of the queue. If there is no pending message of that
+     * type, the new message is dropped.
+     */
+    COALESCE
+}
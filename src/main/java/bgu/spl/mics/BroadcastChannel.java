@@ -0,0 +1,306 @@
+package bgu.spl.mics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A ring buffer that fans a {@link Broadcast} type out to all of its subscribers
+ * with a single write.
+ * <p>
+ * Publishing stores the broadcast in the next slot and advances the published
+ * sequence; every subscriber owns a {@link Cursor} and reads the slots at its own
+ * pace from its {@link Mailbox}. Nothing is allocated or locked per subscriber,
+ * the publisher only wakes up subscribers that are parked or idle waiting for a
+ * message: a consumer raises its cursor's waiting flag before it stops reading,
+ * and the first publisher that sees the flag clears it and wakes the consumer.
+ * A busy subscriber costs the publisher a single volatile read.
+ * <p>
+ * Publishers are serialized, so from the ring's point of view there is a single
+ * writer at a time. The writer never overwrites a slot that a subscriber did not
+ * read yet: when the ring is full it waits for the slowest subscriber. Writers are
+ * serialized by a lock rather than a monitor, so a virtual thread waiting for room
+ * does not pin its carrier thread.
+ * <p>
+ * A subscriber that stops reading without unsubscribing, for example because its
+ * thread died, would stall every publisher. If no subscriber reads anything for
+ * the stall timeout while the ring is full, the ones a whole ring behind are
+ * evicted: they see no more broadcasts of the channel, and the eviction is counted
+ * in the metrics of their micro-service. Reading a slot and eviction
+ * go through the same compare-and-set on the cursor's position, so a reader never
+ * returns a slot the publisher overwrote after evicting it.
+ */
+class BroadcastChannel {
+
+    private static final Cursor[] NO_CURSORS = new Cursor[0];
+    private static final long FULL_BACKOFF_NANOS = 50_000;
+    static final long DEFAULT_STALL_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // the position of an evicted cursor, past any published sequence
+    private static final long EVICTED = Long.MAX_VALUE;
+    private static final AtomicLongFieldUpdater<Cursor> CURSOR_NEXT = AtomicLongFieldUpdater.newUpdater(Cursor.class, "next");
+
+    private final Broadcast[] slots;
+    private final long[] seqs;
+    private final long[] sentAt; // System.nanoTime() when published
+    private final int mask;
+    private final AtomicReference<Cursor[]> cursors;
+    private final ReentrantLock writeLock;
+    private final long stallTimeoutNanos;
+    // sequence of the last published slot, -1 when nothing was published yet
+    private volatile long published;
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two.
+     */
+    BroadcastChannel(int capacity) {
+        this(capacity, DEFAULT_STALL_TIMEOUT_NANOS);
+    }
+
+    /**
+     * @param capacity          the number of slots, rounded up to a power of two.
+     * @param stallTimeoutNanos how long a publisher waits for room in a full ring
+     *                          without any subscriber reading before it evicts the
+     *                          ones that block it.
+     */
+    BroadcastChannel(int capacity, long stallTimeoutNanos) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Channel capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Broadcast[size];
+        this.seqs = new long[size];
+        this.sentAt = new long[size];
+        this.mask = size - 1;
+        this.cursors = new AtomicReference<>(NO_CURSORS);
+        this.writeLock = new ReentrantLock();
+        this.stallTimeoutNanos = stallTimeoutNanos;
+        this.published = -1;
+    }
+
+    /**
+     * Publishes {@code b} to every current subscriber.
+     * <p>
+     * @param b        the broadcast to publish.
+     * @param sequence the bus-wide send sequence, the next value is taken under the
+     *                 write lock so the slots of the ring are in send order.
+     * @return the send sequence of {@code b}, used by the mailboxes to keep the
+     *         order between broadcasts and their other messages.
+     */
+    long publish(Broadcast b, AtomicLong sequence) {
+        writeLock.lock();
+        try {
+            long next = published + 1;
+            awaitRoom(next);
+            long seq = sequence.incrementAndGet();
+            int index = (int) (next & mask);
+            slots[index] = b;
+            seqs[index] = seq;
+            sentAt[index] = System.nanoTime();
+            published = next; // volatile write, makes the slot visible to the readers
+            for (Cursor cursor : cursors.get()) {
+                // published is written before waiting is read, and the consumer does the
+                // opposite, so either it sees the slot or it is woken
+                if (cursor.waiting) {
+                    cursor.waiting = false;
+                    cursor.mailbox.signal();
+                }
+            }
+            return seq;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until slot {@code next} was read by every subscriber, evicting the
+     * subscribers that block it if none of them reads for the stall timeout.
+     * Must be called with the write lock held.
+     */
+    private void awaitRoom(long next) {
+        long slowest = slowestCursor(next);
+        long progressAt = System.nanoTime();
+        while (next - slowest >= slots.length) {
+            LockSupport.parkNanos(this, FULL_BACKOFF_NANOS); // ring is full, wait for the slowest reader
+            long current = slowestCursor(next);
+            long now = System.nanoTime();
+            if (current != slowest) {
+                slowest = current;
+                progressAt = now;
+            } else if (now - progressAt >= stallTimeoutNanos) {
+                for (Cursor cursor : cursors.get()) {
+                    long position = cursor.next;
+                    // fails if the reader took the slot meanwhile, then it is not stalled
+                    if (next - position >= slots.length && CURSOR_NEXT.compareAndSet(cursor, position, EVICTED)) {
+                        unsubscribe(cursor);
+                        cursor.mailbox.evicted(); // counted in the bus metrics of its service
+                    }
+                }
+                slowest = slowestCursor(next);
+                progressAt = now;
+            }
+        }
+    }
+
+    /**
+     * Adds a reader that will see every broadcast published from now on.
+     */
+    Cursor subscribe(Mailbox mailbox) {
+        writeLock.lock();
+        try {
+            Cursor cursor = new Cursor(mailbox, published + 1);
+            while (true) {
+                Cursor[] current = cursors.get();
+                Cursor[] updated = new Cursor[current.length + 1];
+                System.arraycopy(current, 0, updated, 0, current.length);
+                updated[current.length] = cursor;
+                if (cursors.compareAndSet(current, updated)) {
+                    return cursor;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void unsubscribe(Cursor cursor) {
+        while (true) {
+            Cursor[] current = cursors.get();
+            int index = -1;
+            for (int i = 0; i < current.length && index < 0; i++) {
+                if (current[i] == cursor) {
+                    index = i;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            Cursor[] updated = current.length == 1 ? NO_CURSORS : new Cursor[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            if (cursors.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the mailboxes of the current subscribers.
+     */
+    List<Mailbox> subscribers() {
+        Cursor[] current = cursors.get();
+        List<Mailbox> mailboxes = new ArrayList<>(current.length);
+        for (Cursor cursor : current) {
+            mailboxes.add(cursor.mailbox);
+        }
+        return mailboxes;
+    }
+
+    boolean isSubscribed(Mailbox mailbox) {
+        for (Cursor cursor : cursors.get()) {
+            if (cursor.mailbox == mailbox) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long slowestCursor(long fallback) {
+        long min = fallback;
+        for (Cursor cursor : cursors.get()) {
+            min = Math.min(min, cursor.next);
+        }
+        return min;
+    }
+
+    /**
+     * The read position of one subscriber. Only the owning mailbox reads through it.
+     */
+    final class Cursor {
+        private final Mailbox mailbox;
+        // sequence of the next slot to read, EVICTED once a publisher gave up waiting
+        // for this reader; not private so CURSOR_NEXT can reach it
+        volatile long next;
+        // raised by the consumer before it stops reading, cleared by the publisher that
+        // wakes it; raised at first, the consumer may already wait for other messages
+        private volatile boolean waiting = true;
+
+        private Cursor(Mailbox mailbox, long next) {
+            this.mailbox = mailbox;
+            this.next = next;
+        }
+
+        /**
+         * Asks the publishers to wake the consumer on the next broadcast. The
+         * consumer calls it before it parks or goes idle, then checks the channel
+         * once more.
+         */
+        void awaitSignal() {
+            waiting = true;
+        }
+
+        /**
+         * @return the send sequence of the next unread broadcast, or -1 if the
+         *         subscriber is up to date.
+         */
+        long peekSeq() {
+            long n = next;
+            if (n > published) {
+                return -1; // also when evicted
+            }
+            return seqs[(int) (n & mask)];
+        }
+
+        /**
+         * @return the next unread broadcast without reading it, or null if the
+         *         subscriber was evicted. Must only be called after {@link #peekSeq()}
+         *         reported one.
+         */
+        Broadcast peek() {
+            long n = next;
+            return n == EVICTED ? null : slots[(int) (n & mask)];
+        }
+
+        /**
+         * @return the time the next unread broadcast was published, by
+         *         {@link System#nanoTime()}. Must only be called after
+         *         {@link #peekSeq()} reported one.
+         */
+        long peekSentAt() {
+            return sentAt[(int) (next & mask)];
+        }
+
+        /**
+         * Reads the next broadcast. Must only be called after {@link #peekSeq()}
+         * reported one.
+         * <p>
+         * @return the broadcast, or null if the subscriber was evicted meanwhile
+         *         and the slot may have been overwritten.
+         */
+        Broadcast advance() {
+            long n = next;
+            if (n == EVICTED) {
+                return null;
+            }
+            Broadcast b = slots[(int) (n & mask)];
+            // releases the slot to the writer, unless it evicted this reader after the
+            // read above and may have overwritten the slot
+            return CURSOR_NEXT.compareAndSet(this, n, n + 1) ? b : null;
+        }
+
+        int backlog() {
+            return (int) Math.max(0, published - next + 1); // 0 once evicted
+        }
+
+        BroadcastChannel channel() {
+            return BroadcastChannel.this;
+        }
+    }
+}
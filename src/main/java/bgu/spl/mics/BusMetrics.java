@@ -0,0 +1,210 @@
+package bgu.spl.mics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * The counters behind {@link MessageBusImpl#getMetrics()}.
+ * <p>
+ * What a micro-service receives, handles and sends is counted per message type in
+ * counters of its own, which only the thread running it writes, so recording never
+ * contends with other threads; a snapshot adds them up per type. Sends are also
+ * counted per type for every sender, micro-service or not, in striped counters.
+ * The metrics are always on. A micro-service's counters are kept after it
+ * unregisters, so a final snapshot still covers it.
+ */
+class BusMetrics {
+
+    private static final TypeCounters[] NO_TYPES = new TypeCounters[0];
+
+    private final Map<Class<?>, LongAdder> sent;
+    private final Map<MicroService, ServiceCounters> services;
+
+    BusMetrics() {
+        this.sent = new ConcurrentHashMap<>();
+        this.services = new ConcurrentHashMap<>();
+    }
+
+    void sent(Class<?> type) {
+        LongAdder counter = sent.get(type);
+        if (counter == null) {
+            counter = sent.computeIfAbsent(type, key -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    ServiceCounters forService(MicroService m) {
+        return services.computeIfAbsent(m, key -> new ServiceCounters(key.getName()));
+    }
+
+    /**
+     * @param depth the number of messages waiting for a registered micro-service.
+     */
+    MetricsSnapshot snapshot(ToIntFunction<MicroService> depth) {
+        Map<Class<?>, TypeTotals> types = new HashMap<>();
+        for (Map.Entry<Class<?>, LongAdder> entry : sent.entrySet()) {
+            totalsOf(types, entry.getKey()).sent = entry.getValue().sum();
+        }
+        List<MetricsSnapshot.ServiceMetrics> serviceMetrics = new ArrayList<>();
+        for (Map.Entry<MicroService, ServiceCounters> entry : services.entrySet()) {
+            ServiceCounters c = entry.getValue();
+            TypeTotals service = new TypeTotals();
+            long serviceSent = 0;
+            for (TypeCounters counters : c.types) {
+                if (counters == null) {
+                    continue;
+                }
+                serviceSent += counters.sent.get();
+                counters.addTo(service);
+                counters.addTo(totalsOf(types, counters.type));
+            }
+            serviceMetrics.add(new MetricsSnapshot.ServiceMetrics(c.name, serviceSent, service.received,
+                    depth.applyAsInt(entry.getKey()), c.maxDepth.get(), c.channelEvictions.get(),
+                    service.queueLatency.snapshot(), service.callbackTime.snapshot()));
+        }
+        serviceMetrics.sort((a, b) -> a.getService().compareTo(b.getService()));
+        List<MetricsSnapshot.TypeMetrics> typeMetrics = new ArrayList<>(types.size());
+        for (Map.Entry<Class<?>, TypeTotals> entry : types.entrySet()) {
+            TypeTotals t = entry.getValue();
+            typeMetrics.add(new MetricsSnapshot.TypeMetrics(entry.getKey().getSimpleName(), t.sent, t.received, t.expired,
+                    t.queueLatency.snapshot(), t.callbackTime.snapshot()));
+        }
+        typeMetrics.sort((a, b) -> a.getType().compareTo(b.getType()));
+        return new MetricsSnapshot(typeMetrics, serviceMetrics);
+    }
+
+    private static TypeTotals totalsOf(Map<Class<?>, TypeTotals> types, Class<?> type) {
+        return types.computeIfAbsent(type, key -> new TypeTotals());
+    }
+
+    void clear() {
+        sent.clear();
+        services.clear();
+    }
+
+    /**
+     * The sums of the counters of several micro-services, built by a snapshot.
+     */
+    private static final class TypeTotals {
+        private long sent;
+        private long received;
+        private long expired;
+        private final LatencyHistogram queueLatency = new LatencyHistogram();
+        private final LatencyHistogram callbackTime = new LatencyHistogram();
+    }
+
+    /**
+     * The counters of one message type in one micro-service. Written by a single
+     * thread, so a counter is raised with an ordered write rather than an atomic
+     * increment, and the histograms are never contended.
+     */
+    private static final class TypeCounters {
+        private final Class<?> type;
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong expired = new AtomicLong();
+        private final LatencyHistogram queueLatency = new LatencyHistogram();
+        private final LatencyHistogram callbackTime = new LatencyHistogram();
+
+        private TypeCounters(Class<?> type) {
+            this.type = type;
+        }
+
+        private void addTo(TypeTotals totals) {
+            totals.received += received.get();
+            totals.expired += expired.get();
+            queueLatency.addTo(totals.queueLatency);
+            callbackTime.addTo(totals.callbackTime);
+        }
+
+        private static void raise(AtomicLong counter) {
+            counter.lazySet(counter.get() + 1); // single writer, no read-modify-write needed
+        }
+    }
+
+    /**
+     * The counters of one micro-service, held by its mailbox and by the
+     * micro-service itself so recording needs no lookup.
+     * <p>
+     * What it receives, handles and sends is only recorded by the thread running
+     * the micro-service, which is one at a time. The mailbox depth and the channel
+     * evictions are raised by the senders, so those are atomic.
+     */
+    final class ServiceCounters {
+        private final String name;
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicLong channelEvictions = new AtomicLong();
+        // indexed by message type id (see MessageTypes), grown by the writer
+        private volatile TypeCounters[] types = NO_TYPES;
+
+        private ServiceCounters(String name) {
+            this.name = name;
+        }
+
+        /**
+         * The micro-service sent a message of {@code type}.
+         */
+        void sent(Class<?> type) {
+            TypeCounters.raise(forType(type).sent);
+        }
+
+        /**
+         * A message of {@code type} was taken from the mailbox {@code nanos} after it was sent.
+         */
+        void received(Class<?> type, long nanos) {
+            TypeCounters counters = forType(type);
+            TypeCounters.raise(counters.received);
+            counters.queueLatency.record(nanos);
+        }
+
+        /**
+         * A message of {@code type} was dropped from the mailbox because it passed its deadline.
+         */
+        void expired(Class<?> type) {
+            TypeCounters.raise(forType(type).expired);
+        }
+
+        /**
+         * The callback for a message of {@code type} took {@code nanos}.
+         */
+        void handled(Class<?> type, long nanos) {
+            forType(type).callbackTime.record(nanos);
+        }
+
+        /**
+         * A broadcast channel evicted the micro-service, see {@link BroadcastChannel}.
+         */
+        void channelEvicted() {
+            channelEvictions.incrementAndGet();
+        }
+
+        void depth(int depth) {
+            int current;
+            while (depth > (current = maxDepth.get()) && !maxDepth.compareAndSet(current, depth)) {
+                // another producer raised the max, compare again
+            }
+        }
+
+        private TypeCounters forType(Class<?> type) {
+            int id = MessageTypes.idOf(type);
+            TypeCounters[] current = types;
+            if (id < current.length && current[id] != null) {
+                return current[id];
+            }
+            TypeCounters[] grown = id < current.length
+                    ? current.clone()
+                    : Arrays.copyOf(current, Math.max(id + 1, current.length * 2));
+            grown[id] = new TypeCounters(type);
+            types = grown; // published whole, so a snapshot never sees a half-filled array
+            return grown[id];
+        }
+    }
+}
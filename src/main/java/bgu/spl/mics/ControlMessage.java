@@ -0,0 +1,17 @@
+package bgu.spl.mics;
+
+/**
+ * A "Marker" interface extending {@link Message} for messages that must cut a
+ * micro-service short, such as a crash.
+ * <p>
+ * A control message is delivered ahead of every data message that is still
+ * waiting in the receiver's mailbox, so the receiver sees it after at most the
+ * callback it is running. Control messages keep their send order among
+ * themselves, and are never dropped or delayed by a full mailbox.
+ * <p>
+ * A normal shutdown is not a control message: it must wait behind the data still
+ * queued, or that data would be lost.
+ */
+public interface ControlMessage extends Message {
+
+}
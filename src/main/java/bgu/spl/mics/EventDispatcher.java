@@ -0,0 +1,93 @@
+package bgu.spl.mics;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToIntFunction;
+
+/**
+ * Holds the subscribers of a single {@link Event} type and picks the receiver
+ * of each sent event using the type's {@link RoutingStrategy} (round-robin by
+ * default).
+ * <p>
+ * The subscribers are kept in an immutable array that is swapped on every
+ * subscribe/unsubscribe, so choosing a receiver only needs one read of the
+ * current array - senders never block each other.
+ */
+class EventDispatcher {
+
+    private static final MicroService[] EMPTY = new MicroService[0];
+
+    private final AtomicReference<MicroService[]> subscribers;
+    private volatile RoutingStrategy strategy;
+
+    EventDispatcher() {
+        this.subscribers = new AtomicReference<>(EMPTY);
+        this.strategy = RoutingStrategies.roundRobin();
+    }
+
+    void setStrategy(RoutingStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Adds {@code m} as the last subscriber of the rotation.
+     * Subscribing the same micro-service twice has no effect.
+     */
+    void subscribe(MicroService m) {
+        while (true) {
+            MicroService[] current = subscribers.get();
+            for (MicroService s : current) {
+                if (s == m) {
+                    return;
+                }
+            }
+            MicroService[] updated = new MicroService[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = m;
+            if (subscribers.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes {@code m} from the rotation, if it is subscribed.
+     */
+    void unsubscribe(MicroService m) {
+        while (true) {
+            MicroService[] current = subscribers.get();
+            int index = -1;
+            for (int i = 0; i < current.length && index < 0; i++) {
+                if (current[i] == m) {
+                    index = i;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            MicroService[] updated = new MicroService[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            if (subscribers.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param e    the event being sent.
+     * @param load gives the number of messages waiting in a subscriber's mailbox.
+     * @return the micro-service that should receive {@code e}, or null if there
+     *         are no subscribers.
+     */
+    MicroService next(Event<?> e, ToIntFunction<MicroService> load) {
+        MicroService[] current = subscribers.get();
+        if (current.length == 0) {
+            return null;
+        }
+        return strategy.select(e, current, load);
+    }
+
+    boolean isEmpty() {
+        return subscribers.get().length == 0;
+    }
+}
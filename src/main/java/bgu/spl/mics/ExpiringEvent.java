@@ -0,0 +1,35 @@
+package bgu.spl.mics;
+
+/**
+ * An {@link Event} that is only worth handling until a deadline, given in ticks
+ * of the bus clock (see {@link MessageBusImpl#advanceTick(int)}), in
+ * {@link System#nanoTime()} time, or both. An event found past its deadline when
+ * it is taken from a mailbox is dropped instead of handled, and its future is
+ * resolved as expired (see {@link Future#isExpired()}).
+ *
+ * @param <T> The type of the result expected by the event.
+ */
+public interface ExpiringEvent<T> extends Event<T> {
+
+    /** The deadline tick of an event that has no deadline in ticks. */
+    int NO_DEADLINE_TICK = Integer.MAX_VALUE;
+
+    /** The deadline time of an event that has no deadline in nanoseconds. */
+    long NO_DEADLINE_NANOS = Long.MAX_VALUE;
+
+    /**
+     * @return the last tick at which the event is still handled, or
+     *         {@link #NO_DEADLINE_TICK}.
+     */
+    default int getDeadlineTick() {
+        return NO_DEADLINE_TICK;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} after which the event is no longer
+     *         handled, or {@link #NO_DEADLINE_NANOS}.
+     */
+    default long getDeadlineNanos() {
+        return NO_DEADLINE_NANOS;
+    }
+}
@@ -1,25 +1,64 @@
 package bgu.spl.mics;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * A Future object represents a promised result - an object that will
  * eventually be resolved to hold a result of some operation. The class allows
  * Retrieving the result once it is available.
+ * <p>
+ * Besides waiting for the result, a caller can register callbacks that run once
+ * the Future is resolved ({@link #onComplete}, {@link #thenApply},
+ * {@link #thenCompose}), so no thread has to block for it. Callbacks run on the
+ * thread that resolves the Future, or right away on the registering thread if it
+ * is already resolved; they should be short. A callback that throws does not keep
+ * waiting threads or the other callbacks from running: once all of them ran, the
+ * first exception is rethrown to the resolving thread.
+ * <p>
+ * The Future takes no locks. It moves from pending to resolved once, by an atomic
+ * state change, so {@code null} is a valid result and only the first
+ * {@link #resolve} counts. Waiting threads and callbacks are kept in a lock-free
+ * stack that the resolving thread empties. A waiting thread spins briefly before
+ * it parks, since results are often handed over within microseconds.
  * 
- * Only private methods may be added to this class.
  * No public constructor is allowed except for the empty constructor.
  */
 public class Future<T> {
-	T result;
-	boolean isResolved;
+	private static final int PENDING = 0;
+	private static final int RESOLVING = 1;
+	private static final int RESOLVED = 2;
+	// spinning only helps when the resolving thread can run at the same time
+	private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 128 : 0;
+	// the waiters stack once the Future is resolved, nothing can be pushed after it
+	private static final Node CLOSED = new Node(null, null);
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<Future> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(Future.class, "state");
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<Future, Node> WAITERS =
+			AtomicReferenceFieldUpdater.newUpdater(Future.class, Node.class, "waiters");
+
+	private volatile int state;
+	private T result; // published by the volatile write of state
+	private boolean expired; // same
+	private volatile Node waiters;
 
 	/**
 	 * This should be the the only public constructor in this class.
 	 */
 	public Future() {
-		result = null;
-		isResolved = false;
+		state = PENDING;
+		waiters = null;
 	}
 	
 	/**
@@ -31,26 +70,69 @@ public class Future<T> {
      * 	       
      */
 	public T get() {
-		synchronized(this){
-			while(result == null){
-					try{
-						this.wait();
-					}catch(InterruptedException e){
-						Thread.currentThread().interrupt();
-					}
-				}
-				this.isResolved = true;
-				return  result;
-			}
+		if (state != RESOLVED) {
+			await(false, 0L);
 		}
+		return result;
+	}
+
 	/**
      * Resolves the result of this Future object.
+     * Only the first call has an effect, later calls are ignored.
      */
 	public void resolve (T result) {
-		synchronized(this){
-			this.result = result;
-			isResolved = true;
-			this.notifyAll();
+		complete(result, false);
+	}
+
+	/**
+	 * Resolves this Future with {@code null} because its event passed its deadline
+	 * before it was handled (see {@link ExpiringEvent}).
+	 * Has no effect if the Future is already resolved.
+	 */
+	void expire() {
+		complete(null, true);
+	}
+
+	/**
+	 * @return true if this Future was resolved because its event expired, in which
+	 *         case its result is {@code null}.
+	 */
+	public boolean isExpired() {
+		return state == RESOLVED && expired;
+	}
+
+	private void complete(T result, boolean expired) {
+		if (!STATE.compareAndSet(this, PENDING, RESOLVING)) {
+			return;
+		}
+		this.result = result;
+		this.expired = expired;
+		state = RESOLVED;
+		// wake every waiter first, then run the callbacks in registration order,
+		// they were pushed on top of each other
+		Node callbacks = null;
+		for (Node node = WAITERS.getAndSet(this, CLOSED); node != null; node = node.next) {
+			Thread waiter = node.waiter;
+			if (waiter != null) {
+				LockSupport.unpark(waiter);
+			} else if (node.callback != null) {
+				callbacks = new Node(null, node.callback, callbacks);
+			}
+		}
+		RuntimeException failure = null;
+		for (Node node = callbacks; node != null; node = node.next) {
+			try {
+				node.callback.accept(result);
+			} catch (RuntimeException e) {
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
 		}
 	}
 	
@@ -58,9 +140,7 @@ public class Future<T> {
      * @return true if this object has been resolved, false otherwise
      */
 	public boolean isDone() {
-		synchronized(this){
-			return (result != null);
-		}
+		return state == RESOLVED;
 	}
 	
 	/**
@@ -75,24 +155,190 @@ public class Future<T> {
      *         elapsed, return null.
      */
 	public T get(long timeout, TimeUnit unit) {
-		long timeTomill = unit.toMillis(timeout);
-		long threshold = System.currentTimeMillis() + timeTomill;
-		synchronized(this){
-			while(System.currentTimeMillis()<threshold && result == null){
-				try{
-					wait(threshold-System.currentTimeMillis());
-				}catch(InterruptedException e){
-					Thread.currentThread().interrupt();
-					return null;
+		if (state != RESOLVED && !await(true, unit.toNanos(timeout))) {
+			return null;
+		}
+		return result;
+	}
+
+	/**
+	 * Calls {@code action} with the result once this Future is resolved.
+	 * <p>
+	 * @param action the callback to run with the result.
+	 * @return this Future.
+	 */
+	public Future<T> onComplete(Consumer<? super T> action) {
+		if (!push(new Node(null, action))) {
+			action.accept(result);
+		}
+		return this;
+	}
+
+	/**
+	 * @param fn the function to apply to the result.
+	 * @return a Future resolved with {@code fn} applied to the result of this one.
+	 */
+	public <U> Future<U> thenApply(Function<? super T, ? extends U> fn) {
+		Future<U> next = new Future<>();
+		onComplete(r -> next.resolve(fn.apply(r)));
+		return next;
+	}
+
+	/**
+	 * @param fn the function that starts the next step from the result, for example
+	 *           by sending another event.
+	 * @return a Future resolved with the result of the Future {@code fn} returns.
+	 */
+	public <U> Future<U> thenCompose(Function<? super T, ? extends Future<U>> fn) {
+		Future<U> next = new Future<>();
+		onComplete(r -> fn.apply(r).onComplete(next::resolve));
+		return next;
+	}
+
+	/**
+	 * @return a {@link CompletableFuture} completed with the result of this Future.
+	 */
+	public CompletableFuture<T> toCompletableFuture() {
+		CompletableFuture<T> completable = new CompletableFuture<>();
+		onComplete(completable::complete);
+		return completable;
+	}
+
+	/**
+	 * @param futures the futures to wait for.
+	 * @return a Future resolved, once all of {@code futures} are resolved, with their
+	 *         results in the same order.
+	 */
+	public static <T> Future<List<T>> allOf(List<? extends Future<? extends T>> futures) {
+		Future<List<T>> all = new Future<>();
+		int count = futures.size();
+		if (count == 0) {
+			all.resolve(new ArrayList<>());
+			return all;
+		}
+		List<T> results = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			results.add(null);
+		}
+		AtomicInteger remaining = new AtomicInteger(count);
+		for (int i = 0; i < count; i++) {
+			int index = i;
+			futures.get(i).onComplete(r -> {
+				results.set(index, r);
+				// the last decrement sees every result set before the others
+				if (remaining.decrementAndGet() == 0) {
+					all.resolve(results);
 				}
+			});
+		}
+		return all;
+	}
+
+	/**
+	 * @param futures the futures to wait for, at least one.
+	 * @return a Future resolved with the result of the first of {@code futures}
+	 *         to be resolved.
+	 */
+	public static <T> Future<T> anyOf(List<? extends Future<? extends T>> futures) {
+		if (futures.isEmpty()) {
+			throw new IllegalArgumentException("anyOf needs at least one future");
+		}
+		Future<T> any = new Future<>();
+		for (Future<? extends T> future : futures) {
+			future.onComplete(any::resolve); // only the first resolve counts
+		}
+		return any;
+	}
+
+	/**
+	 * Waits for the Future to be resolved: spins for a short while, then parks.
+	 * <p>
+	 * @return true if it was resolved, false if the timeout elapsed first or the
+	 *         thread was interrupted during a timed wait. An untimed wait ignores
+	 *         interrupts, keeping the interrupt status for the caller.
+	 */
+	private boolean await(boolean timed, long nanos) {
+		for (int i = 0; i < SPINS; i++) {
+			if (state == RESOLVED) {
+				return true;
 			}
-			if(this.isResolved){
-				return result;
+		}
+		long deadline = timed ? System.nanoTime() + nanos : 0L;
+		Node node = new Node(Thread.currentThread(), null);
+		if (!push(node)) {
+			return true;
+		}
+		boolean interrupted = false;
+		try {
+			while (state != RESOLVED) {
+				if (timed) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0L) {
+						return false;
+					}
+					LockSupport.parkNanos(this, remaining);
+					if (Thread.currentThread().isInterrupted()) {
+						return state == RESOLVED;
+					}
+				} else {
+					LockSupport.park(this);
+					if (Thread.interrupted()) {
+						interrupted = true; // restored below, park would not block with it set
+					}
+				}
+			}
+			return true;
+		} finally {
+			node.waiter = null; // a timed out node is skipped and unlinked by later pushes
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Pushes {@code node} on the waiters stack, dropping waiters that gave up.
+	 * <p>
+	 * @return false if the Future is already resolved and nothing was pushed.
+	 */
+	private boolean push(Node node) {
+		while (true) {
+			Node head = waiters;
+			if (head == CLOSED) {
+				return false;
 			}
-			else{
-				return null;
+			Node next = head;
+			while (next != null && next.isAbandoned()) {
+				next = next.next;
+			}
+			node.next = next;
+			if (WAITERS.compareAndSet(this, head, node)) {
+				return true;
 			}
 		}
 	}
 
+	/**
+	 * A parked thread or a callback waiting for the result.
+	 */
+	private static final class Node {
+		private volatile Thread waiter;
+		private final Consumer<Object> callback;
+		private Node next;
+
+		private Node(Thread waiter, Consumer<?> callback) {
+			this(waiter, callback, null);
+		}
+
+		@SuppressWarnings("unchecked")
+		private Node(Thread waiter, Consumer<?> callback, Node next) {
+			this.waiter = waiter;
+			this.callback = (Consumer<Object>) callback;
+			this.next = next;
+		}
+
+		private boolean isAbandoned() {
+			return waiter == null && callback == null;
+		}
+	}
 }
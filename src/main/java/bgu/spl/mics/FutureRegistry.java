@@ -0,0 +1,229 @@
+package bgu.spl.mics;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the {@link Future} of every {@link Event} that was sent and not yet completed.
+ * <p>
+ * An entry lives only until its event is completed. Entries of events that are
+ * never completed (e.g. the handler terminated, or the event type is never
+ * completed by design) are swept once they are older than the expiry time, so
+ * the registry size stays bounded by the number of events in flight.
+ */
+class FutureRegistry {
+
+    /** Default time after which a future that was never completed is dropped. */
+    static final long DEFAULT_EXPIRY_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    /** A sweep is attempted once every this many registrations. */
+    private static final int SWEEP_INTERVAL = 1024;
+
+    private final Map<Event<?>, Entry<?>> futures;
+    private final AtomicInteger registrationsSinceSweep;
+    private final AtomicBoolean sweeping;
+    private volatile long expiryNanos;
+
+    FutureRegistry() {
+        this.futures = new ConcurrentHashMap<>();
+        this.registrationsSinceSweep = new AtomicInteger(0);
+        this.sweeping = new AtomicBoolean(false);
+        this.expiryNanos = DEFAULT_EXPIRY_NANOS;
+    }
+
+    /**
+     * Creates and registers the future of {@code e}. Must be called before
+     * {@code e} is made visible to its handler, so a fast {@link #complete}
+     * always finds it.
+     */
+    <T> Future<T> register(Event<T> e) {
+        Future<T> future = new Future<>();
+        futures.put(e, new Entry<>(future, null, 0, System.nanoTime()));
+        if (registrationsSinceSweep.incrementAndGet() >= SWEEP_INTERVAL) {
+            sweepExpired();
+        }
+        return future;
+    }
+
+    /**
+     * Registers every event of {@code events} in one call, with one clock read and
+     * one sweep check for the whole batch. Like {@link #register}, must be called
+     * before any of the events is made visible to its handler.
+     * <p>
+     * @param into If not null, gets the future of each event, in order. Without it
+     *             no per-event future is created, the events only fill the batch.
+     * @return the batch, resolved once every event of it is completed, expired,
+     *         discarded or swept; an event that was not completed has a null result.
+     */
+    <T> Batch<T> registerAll(List<? extends Event<T>> events, List<Future<T>> into) {
+        Batch<T> batch = new Batch<>(events.size());
+        long now = System.nanoTime();
+        for (int i = 0; i < events.size(); i++) {
+            Future<T> future = null;
+            if (into != null) {
+                future = new Future<>();
+                into.add(future);
+            }
+            futures.put(events.get(i), new Entry<>(future, batch, i, now));
+        }
+        if (registrationsSinceSweep.addAndGet(events.size()) >= SWEEP_INTERVAL) {
+            sweepExpired();
+        }
+        return batch;
+    }
+
+    /**
+     * Removes the future of {@code e} and resolves it with {@code result}.
+     * Does nothing if {@code e} is unknown (already completed or expired).
+     */
+    @SuppressWarnings("unchecked")
+    <T> void complete(Event<T> e, T result) {
+        Entry<T> entry = (Entry<T>) futures.remove(e);
+        if (entry != null) {
+            entry.resolve(result);
+        }
+    }
+
+    /**
+     * Forgets the future of {@code e} without resolving it, e.g. when the event
+     * could not be delivered or its receiver unregistered. If {@code e} was sent in a
+     * batch, it counts there as resolved with null.
+     */
+    void discard(Event<?> e) {
+        Entry<?> entry = futures.remove(e);
+        if (entry != null) {
+            entry.drop();
+        }
+    }
+
+    /**
+     * Removes the future of {@code e} and resolves it as expired (see
+     * {@link Future#isExpired()}). Does nothing if {@code e} is unknown.
+     */
+    void expire(Event<?> e) {
+        Entry<?> entry = futures.remove(e);
+        if (entry != null) {
+            entry.expire();
+        }
+    }
+
+    void setExpiry(long timeout, TimeUnit unit) {
+        this.expiryNanos = unit.toNanos(timeout);
+    }
+
+    int size() {
+        return futures.size();
+    }
+
+    void clear() {
+        futures.clear();
+    }
+
+    /**
+     * Drops every entry older than the expiry time. Only one thread sweeps at a
+     * time, the others simply skip.
+     */
+    void sweepExpired() {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            registrationsSinceSweep.set(0);
+            long now = System.nanoTime();
+            long expiry = expiryNanos;
+            Iterator<Map.Entry<Event<?>, Entry<?>>> it = futures.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Event<?>, Entry<?>> next = it.next();
+                Entry<?> entry = next.getValue();
+                // only drop what a concurrent complete did not take first
+                if (now - entry.registeredAt > expiry && futures.remove(next.getKey(), entry)) {
+                    entry.drop();
+                }
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    /**
+     * The events of one {@link #registerAll} call, awaited through a single future
+     * holding their results in order.
+     */
+    static final class Batch<T> {
+        private final Future<List<T>> all;
+        private final List<T> results;
+        private final AtomicInteger remaining;
+
+        private Batch(int size) {
+            this.all = new Future<>();
+            this.results = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                results.add(null);
+            }
+            this.remaining = new AtomicInteger(size);
+            if (size == 0) {
+                all.resolve(results);
+            }
+        }
+
+        Future<List<T>> future() {
+            return all;
+        }
+
+        private void set(int index, T result) {
+            results.set(index, result);
+            // the last decrement sees every result set before the others
+            if (remaining.decrementAndGet() == 0) {
+                all.resolve(results);
+            }
+        }
+    }
+
+    private static class Entry<T> {
+        private final Future<T> future; // null for an event of a batch sent without its own futures
+        private final Batch<T> batch;   // null for an event sent alone
+        private final int index;
+        private final long registeredAt;
+
+        Entry(Future<T> future, Batch<T> batch, int index, long registeredAt) {
+            this.future = future;
+            this.batch = batch;
+            this.index = index;
+            this.registeredAt = registeredAt;
+        }
+
+        void resolve(T result) {
+            if (future != null) {
+                future.resolve(result);
+            }
+            if (batch != null) {
+                batch.set(index, result);
+            }
+        }
+
+        void expire() {
+            if (future != null) {
+                future.expire();
+            }
+            if (batch != null) {
+                batch.set(index, null);
+            }
+        }
+
+        /**
+         * The event will never be handled: its own future is left pending, as for an
+         * event sent alone, but its batch must not wait for it.
+         */
+        void drop() {
+            if (batch != null) {
+                batch.set(index, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package bgu.spl.mics;
+
+/**
+ * An {@link Event} that carries a routing key. With key-affinity routing (see
+ * {@link RoutingStrategies#keyAffinity()}) all the events with equal keys are
+ * received by the same subscriber, as long as the subscribers do not change.
+ *
+ * @param <T> The type of the result expected by the event.
+ */
+public interface KeyedEvent<T> extends Event<T> {
+
+    /**
+     * @return the key of this event, or null if it may go to any subscriber.
+     */
+    Object getRoutingKey();
+}
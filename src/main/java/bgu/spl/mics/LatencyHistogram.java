@@ -0,0 +1,85 @@
+package bgu.spl.mics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, with one bucket per power of
+ * two. Recording is a few atomic increments, cheap enough for every message;
+ * percentiles are estimated from the buckets, so they are accurate to a factor
+ * of two.
+ */
+class LatencyHistogram {
+
+    // bucket i holds durations in [2^(i-1), 2^i), bucket 0 holds 0
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong total;
+    private final AtomicLong max;
+
+    LatencyHistogram() {
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.count = new AtomicLong();
+        this.total = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0; // nanoTime read on two cores
+        }
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // another thread raised the max, compare again
+        }
+    }
+
+    /**
+     * Adds everything recorded here to {@code total}, to summarize several
+     * histograms as one.
+     */
+    void addTo(LatencyHistogram total) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = buckets.get(i);
+            if (n != 0) {
+                total.buckets.addAndGet(i, n);
+            }
+        }
+        total.count.addAndGet(count.get());
+        total.total.addAndGet(this.total.get());
+        long current;
+        long maxNanos = max.get();
+        while (maxNanos > (current = total.max.get()) && !total.max.compareAndSet(current, maxNanos)) {
+            // another thread raised the max, compare again
+        }
+    }
+
+    MetricsSnapshot.Latency snapshot() {
+        long n = count.get();
+        long maxNanos = max.get();
+        return new MetricsSnapshot.Latency(n, n == 0 ? 0 : total.get() / n,
+                percentile(n, 0.5, maxNanos), percentile(n, 0.9, maxNanos), percentile(n, 0.99, maxNanos), maxNanos);
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the {@code fraction} percentile,
+     *         at most the largest recorded duration.
+     */
+    private long percentile(long n, double fraction, long maxNanos) {
+        long rank = (long) Math.ceil(n * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank && seen > 0) {
+                long upper = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                return Math.min(upper, maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+}
@@ -0,0 +1,697 @@
+package bgu.spl.mics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The message queue the {@link MessageBusImpl} allocates for a registered
+ * {@link MicroService}.
+ * <p>
+ * Messages arrive from two sources: the mailbox's own FIFO queue, filled by
+ * {@link #put}, and the {@link BroadcastChannel}s the service reads through a
+ * cursor. Every message carries the bus-wide sequence number it was sent with,
+ * and {@link #take()} always returns the oldest one of all sources, so a
+ * sender's messages are received in the order they were sent.
+ * <p>
+ * {@link ControlMessage}s skip that order: they wait in a lane of their own that
+ * is always read first, so a crash is seen no matter how many data
+ * messages are queued.
+ * <p>
+ * The mailbox has a single consumer - the owning micro-service. It parks while
+ * the mailbox is empty and producers unpark it, so channel publishers can wake
+ * it without taking any lock. A consumer that does not park, such as a service
+ * run by the {@link ActorScheduler}, sets a listener instead, which producers
+ * call whenever a message becomes available; channels only call it after the
+ * consumer went {@link #idle()}.
+ * <p>
+ * The queue is unbounded unless a {@link Limit} is set for the whole mailbox or
+ * passed along with a message for its type; a full mailbox then applies the
+ * limit's {@link BackpressurePolicy}. Broadcasts read through channels are not
+ * counted, the channel bounds them itself, and neither are control messages.
+ * <p>
+ * Queued messages are checked against their deadline when they are taken, see
+ * {@link Hooks}; expired ones are dropped and the consumer never sees them.
+ */
+class Mailbox {
+
+    private static final BroadcastChannel.Cursor[] NO_CURSORS = new BroadcastChannel.Cursor[0];
+
+    private final ReentrantLock lock;
+    private final Condition notFull;
+    private final ArrayDeque<Envelope> queue; // guarded by lock
+    private final ArrayDeque<Envelope> control; // guarded by lock
+    private final Map<Class<?>, int[]> typeCounts; // guarded by lock, only types that have a limit
+    private final Map<BackpressurePolicy, AtomicLong> policyCounters;
+    private final Set<Class<?>> coalescedTypes;
+    private final BusMetrics.ServiceCounters metrics;
+    private final Hooks hooks;
+    private volatile BroadcastChannel.Cursor[] cursors;
+    private volatile Thread waiter;
+    private volatile Runnable listener;
+    private volatile int queued; // queue.size(), written under lock and readable without it
+    private volatile int controlQueued; // control.size(), same
+    private Limit limit; // guarded by lock
+    private int blockedSenders; // guarded by lock
+    private boolean closed; // guarded by lock
+
+    /**
+     * @param policyCounters counts, per policy, how many times a full mailbox applied it.
+     * @param metrics        records the depth of the mailbox and how long messages waited in it.
+     * @param hooks          tells which queued messages passed their deadline, and
+     *                       learns of the messages the consumer never sees as sent.
+     */
+    Mailbox(Map<BackpressurePolicy, AtomicLong> policyCounters, BusMetrics.ServiceCounters metrics, Hooks hooks) {
+        this.lock = new ReentrantLock();
+        this.notFull = lock.newCondition();
+        this.queue = new ArrayDeque<>();
+        this.control = new ArrayDeque<>();
+        this.typeCounts = new HashMap<>();
+        this.policyCounters = policyCounters;
+        this.coalescedTypes = new CopyOnWriteArraySet<>();
+        this.metrics = metrics;
+        this.hooks = hooks;
+        this.cursors = NO_CURSORS;
+    }
+
+    /**
+     * From now on, consecutive pending messages of {@code type} are taken as a
+     * single merged message.
+     */
+    void enableCoalescing(Class<? extends Mergeable<?>> type) {
+        coalescedTypes.add(type);
+    }
+
+    /**
+     * Bounds the number of queued messages, or removes the bound if {@code limit} is null.
+     */
+    void setLimit(Limit limit) {
+        lock.lock();
+        try {
+            this.limit = limit;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends {@code message} to the queue and wakes the consumer if needed.
+     * <p>
+     * @param typeLimit the bound on queued messages of {@code message}'s type, or null.
+     * @return the messages dropped to apply the limits - including {@code message}
+     *         itself if it was not queued - or null if nothing was dropped.
+     */
+    List<Message> put(Message message, long seq, Limit typeLimit) {
+        List<Message> dropped = null;
+        lock.lock();
+        try {
+            if (closed) {
+                return Collections.singletonList(message);
+            }
+            if (message instanceof ControlMessage) {
+                control.addLast(new Envelope(message, seq, System.nanoTime()));
+                controlQueued = control.size();
+            } else {
+                Class<?> type = message.getClass();
+                if (typeLimit != null) {
+                    dropped = makeRoom(typeLimit, type, true, message, dropped);
+                }
+                if (limit != null && !contains(dropped, message)) {
+                    dropped = makeRoom(limit, type, false, message, dropped);
+                }
+                if (contains(dropped, message)) {
+                    return dropped;
+                }
+                if (typeLimit != null) {
+                    countOf(type)[0]++;
+                } else {
+                    int[] count = typeCounts.get(type);
+                    if (count != null) {
+                        count[0]++;
+                    }
+                }
+                queue.addLast(new Envelope(message, seq, System.nanoTime()));
+                queued = queue.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+        signal();
+        return dropped;
+    }
+
+    /**
+     * @param listener called, on the producer's thread, every time a message becomes
+     *                 available, or null to stop calling it.
+     */
+    void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Called by a consumer that stops reading until it is woken, such as an actor
+     * that yields its worker: the channels wake it on their next broadcast.
+     * <p>
+     * @return true if a message is already waiting, the consumer must not stop.
+     */
+    boolean idle() {
+        awaitChannels();
+        return depth() > 0;
+    }
+
+    private void awaitChannels() {
+        for (BroadcastChannel.Cursor cursor : cursors) {
+            cursor.awaitSignal();
+        }
+    }
+
+    /**
+     * Called by a broadcast channel that stopped delivering to this mailbox because
+     * its consumer stalled it.
+     */
+    void evicted() {
+        metrics.channelEvicted();
+    }
+
+    /**
+     * Wakes the consumer if it is parked waiting for a message.
+     */
+    void signal() {
+        metrics.depth(depth());
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        Runnable l = listener;
+        if (l != null) {
+            l.run();
+        }
+    }
+
+    /**
+     * Takes the oldest message, waiting until one is available.
+     * <p>
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    Message take() throws InterruptedException {
+        while (true) {
+            Message message = poll();
+            if (message != null) {
+                return message;
+            }
+            waiter = Thread.currentThread();
+            awaitChannels();
+            try {
+                // check again now that producers can see the waiter, so no wake up is lost
+                message = poll();
+                if (message != null) {
+                    return message;
+                }
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            } finally {
+                waiter = null;
+            }
+        }
+    }
+
+    /**
+     * Takes up to {@code max} messages, in order, waiting only until the first one
+     * is available.
+     * <p>
+     * @param into the list the messages are added to.
+     * @param max  the maximal number of messages to take, at least 1.
+     * @return the number of messages taken.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    int drainTo(List<Message> into, int max) throws InterruptedException {
+        into.add(take());
+        return 1 + drainAvailable(into, max - 1);
+    }
+
+    /**
+     * Takes up to {@code max} messages, in order, without waiting.
+     * <p>
+     * @param into the list the messages are added to.
+     * @param max  the maximal number of messages to take.
+     * @return the number of messages taken, 0 if the mailbox is empty.
+     */
+    int drainAvailable(List<Message> into, int max) {
+        int taken = 0;
+        List<Message> expired = null;
+        if (cursors.length == 0 && coalescedTypes.isEmpty()) {
+            // only the queues to read from, take them all under a single lock
+            lock.lock();
+            try {
+                while (taken < max && !control.isEmpty()) {
+                    Envelope envelope = control.pollFirst();
+                    controlQueued = control.size();
+                    received(envelope.message, envelope.sentAt);
+                    into.add(envelope.message);
+                    taken++;
+                }
+                while (taken < max && !queue.isEmpty()) {
+                    Envelope envelope = queue.pollFirst();
+                    removed(envelope);
+                    if (hooks.isExpired(envelope.message)) {
+                        expired = addTo(expired, envelope.message);
+                        continue;
+                    }
+                    received(envelope.message, envelope.sentAt);
+                    into.add(envelope.message);
+                    taken++;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (expired != null) {
+                for (Message message : expired) {
+                    expired(message);
+                }
+            }
+        } else {
+            Message message;
+            while (taken < max && (message = poll()) != null) {
+                into.add(message);
+                taken++;
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * @return the oldest available message, control messages first, or null if the
+     *         mailbox is empty. Consecutive messages of a coalesced type are merged
+     *         into one.
+     */
+    Message poll() {
+        Message message = pollControl();
+        if (message != null) {
+            return message;
+        }
+        message = pollOldest(null);
+        if (message != null && coalescedTypes.contains(message.getClass())) {
+            message = coalesce((Mergeable<?>) message);
+        }
+        return message;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Message coalesce(Mergeable<?> first) {
+        Mergeable merged = first;
+        Message next;
+        // a control message that arrives meanwhile ends the merge, it goes first
+        while (controlQueued == 0 && (next = pollOldest(first.getClass())) != null) {
+            if (merged == first) {
+                hooks.merged(this, first);
+            }
+            hooks.merged(this, next);
+            merged = merged.merge((Mergeable) next);
+        }
+        return merged;
+    }
+
+    /**
+     * Removes and returns the oldest control message. Costs a single volatile read
+     * when there is none.
+     * <p>
+     * @return the oldest control message, or null if there is none.
+     */
+    Message pollControl() {
+        if (controlQueued == 0) {
+            return null;
+        }
+        Envelope envelope;
+        lock.lock();
+        try {
+            envelope = control.pollFirst();
+            controlQueued = control.size();
+        } finally {
+            lock.unlock();
+        }
+        if (envelope == null) {
+            return null;
+        }
+        received(envelope.message, envelope.sentAt);
+        return envelope.message;
+    }
+
+    /**
+     * Removes and returns the oldest available data message.
+     * <p>
+     * @param onlyType if not null, the oldest message is taken only if it is of this type.
+     * @return the oldest message, or null if there is none (of {@code onlyType}).
+     */
+    private Message pollOldest(Class<?> onlyType) {
+        while (true) {
+            // A broadcast that is visible in a channel makes every earlier message
+            // of its sender visible in the queue, and vice versa, so the channels are
+            // scanned on both sides of the queue read.
+            BroadcastChannel.Cursor oldest = null;
+            long oldestSeq = Long.MAX_VALUE;
+            for (BroadcastChannel.Cursor cursor : cursors) {
+                long seq = cursor.peekSeq();
+                if (seq >= 0 && seq < oldestSeq) {
+                    oldest = cursor;
+                    oldestSeq = seq;
+                }
+            }
+            Envelope head;
+            lock.lock();
+            try {
+                head = queue.peekFirst();
+            } finally {
+                lock.unlock();
+            }
+            if (head == null || head.seq > oldestSeq) {
+                if (oldest == null) {
+                    return null;
+                }
+                Broadcast peeked = oldest.peek();
+                if (peeked == null) {
+                    continue; // evicted from the channel while reading it
+                }
+                if (onlyType != null && peeked.getClass() != onlyType) {
+                    return null;
+                }
+                long sentAt = oldest.peekSentAt();
+                Broadcast broadcast = oldest.advance();
+                if (broadcast == null) {
+                    continue; // evicted from the channel while reading it
+                }
+                // publishers do not record the depth of busy consumers, record it here
+                metrics.depth(controlQueued + queued + oldest.backlog() + 1);
+                received(broadcast, sentAt);
+                return broadcast;
+            }
+            if (olderBroadcastThan(head.seq)) {
+                continue; // a broadcast sent before the head showed up meanwhile
+            }
+            if (onlyType != null && head.message.getClass() != onlyType) {
+                return null;
+            }
+            lock.lock();
+            try {
+                if (queue.peekFirst() != head) {
+                    continue; // taken meanwhile by a backpressure policy
+                }
+                queue.pollFirst();
+                removed(head);
+            } finally {
+                lock.unlock();
+            }
+            if (hooks.isExpired(head.message)) {
+                expired(head.message);
+                continue;
+            }
+            received(head.message, head.sentAt);
+            return head.message;
+        }
+    }
+
+    /**
+     * Applies {@code limit} if the mailbox (or the messages of {@code type}, when
+     * {@code typeScoped}) is full. Must be called with the lock held.
+     */
+    private List<Message> makeRoom(Limit limit, Class<?> type, boolean typeScoped, Message incoming, List<Message> dropped) {
+        if (count(type, typeScoped) < limit.capacity) {
+            return dropped;
+        }
+        policyCounters.get(limit.policy).incrementAndGet();
+        switch (limit.policy) {
+            case BLOCK:
+                blockedSenders++;
+                try {
+                    while (!closed && count(type, typeScoped) >= limit.capacity) {
+                        notFull.await();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return addTo(dropped, incoming);
+                } finally {
+                    blockedSenders--;
+                }
+                return closed ? addTo(dropped, incoming) : dropped;
+            case DROP_OLDEST:
+                Envelope oldest = typeScoped ? firstOfType(type) : queue.peekFirst();
+                remove(oldest);
+                return addTo(dropped, oldest.message);
+            case COALESCE:
+                Envelope previous = lastOfType(type);
+                if (previous == null) {
+                    return addTo(dropped, incoming);
+                }
+                remove(previous);
+                return addTo(dropped, previous.message);
+            case DROP_NEWEST:
+            default:
+                return addTo(dropped, incoming);
+        }
+    }
+
+    private int count(Class<?> type, boolean typeScoped) {
+        return typeScoped ? countOf(type)[0] : queue.size();
+    }
+
+    private int[] countOf(Class<?> type) {
+        int[] count = typeCounts.get(type);
+        if (count == null) {
+            // first limited message of this type, count the ones already queued
+            count = new int[1];
+            for (Envelope envelope : queue) {
+                if (envelope.message.getClass() == type) {
+                    count[0]++;
+                }
+            }
+            typeCounts.put(type, count);
+        }
+        return count;
+    }
+
+    private Envelope firstOfType(Class<?> type) {
+        for (Envelope envelope : queue) {
+            if (envelope.message.getClass() == type) {
+                return envelope;
+            }
+        }
+        return null;
+    }
+
+    private Envelope lastOfType(Class<?> type) {
+        Iterator<Envelope> it = queue.descendingIterator();
+        while (it.hasNext()) {
+            Envelope envelope = it.next();
+            if (envelope.message.getClass() == type) {
+                return envelope;
+            }
+        }
+        return null;
+    }
+
+    private void remove(Envelope envelope) {
+        queue.removeFirstOccurrence(envelope);
+        removed(envelope);
+    }
+
+    private void removed(Envelope envelope) {
+        queued = queue.size();
+        if (!typeCounts.isEmpty()) {
+            int[] count = typeCounts.get(envelope.message.getClass());
+            if (count != null) {
+                count[0]--;
+            }
+        }
+        if (blockedSenders > 0) {
+            notFull.signalAll();
+        }
+    }
+
+    private static boolean contains(List<Message> messages, Message message) {
+        if (messages != null) {
+            for (Message m : messages) {
+                if (m == message) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static List<Message> addTo(List<Message> messages, Message message) {
+        if (messages == null) {
+            messages = new ArrayList<>(2);
+        }
+        messages.add(message);
+        return messages;
+    }
+
+    private void received(Message message, long sentAt) {
+        metrics.received(message.getClass(), System.nanoTime() - sentAt);
+    }
+
+    private void expired(Message message) {
+        metrics.expired(message.getClass());
+        hooks.expired(this, message);
+    }
+
+    private boolean olderBroadcastThan(long seq) {
+        for (BroadcastChannel.Cursor cursor : cursors) {
+            long s = cursor.peekSeq();
+            if (s >= 0 && s < seq) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void addCursor(BroadcastChannel.Cursor cursor) {
+        lock.lock();
+        try {
+            BroadcastChannel.Cursor[] current = cursors;
+            BroadcastChannel.Cursor[] updated = new BroadcastChannel.Cursor[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = cursor;
+            cursors = updated;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Detaches the mailbox from all of its channels and empties its queue.
+     * <p>
+     * @return the messages that were still queued.
+     */
+    List<Message> close() {
+        List<Message> pending = new ArrayList<>();
+        lock.lock();
+        try {
+            for (BroadcastChannel.Cursor cursor : cursors) {
+                cursor.channel().unsubscribe(cursor);
+            }
+            cursors = NO_CURSORS;
+            listener = null;
+            for (Envelope envelope : control) {
+                pending.add(envelope.message);
+            }
+            for (Envelope envelope : queue) {
+                pending.add(envelope.message);
+            }
+            control.clear();
+            controlQueued = 0;
+            queue.clear();
+            queued = 0;
+            typeCounts.clear();
+            closed = true;
+            notFull.signalAll(); // blocked senders give up
+        } finally {
+            lock.unlock();
+        }
+        return pending;
+    }
+
+    /**
+     * @return the number of messages waiting in the queue and in the channels.
+     */
+    int size() {
+        int size;
+        lock.lock();
+        try {
+            size = control.size() + queue.size();
+        } finally {
+            lock.unlock();
+        }
+        for (BroadcastChannel.Cursor cursor : cursors) {
+            size += cursor.backlog();
+        }
+        return size;
+    }
+
+    /**
+     * Same as {@link #size()} but without locking, so the result may be slightly
+     * out of date while messages are being added or taken. Cheap enough to be
+     * read for every sent event.
+     */
+    int depth() {
+        int depth = controlQueued + queued;
+        for (BroadcastChannel.Cursor cursor : cursors) {
+            depth += cursor.backlog();
+        }
+        return depth;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * A bound on the number of queued messages and what to do when it is reached.
+     */
+    static final class Limit {
+        private final int capacity;
+        private final BackpressurePolicy policy;
+
+        Limit(int capacity, BackpressurePolicy policy) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("Mailbox capacity must be positive: " + capacity);
+            }
+            if (policy == null) {
+                throw new IllegalArgumentException("A backpressure policy is required");
+            }
+            this.capacity = capacity;
+            this.policy = policy;
+        }
+    }
+
+    /**
+     * Decides, when a queued message is taken, whether it passed its deadline, and
+     * hears of the messages that are taken without reaching the consumer as sent.
+     */
+    interface Hooks {
+        /**
+         * May be called with the mailbox lock held, when a batch is drained under a
+         * single lock, so it must not block or take any lock of the bus: a sender
+         * holding one could be waiting for this mailbox's lock.
+         * <p>
+         * @return true if {@code message} must be dropped instead of handled.
+         */
+        boolean isExpired(Message message);
+
+        /**
+         * {@code message} was dropped from {@code mailbox} as expired. Called
+         * without the mailbox lock.
+         */
+        void expired(Mailbox mailbox, Message message);
+
+        /**
+         * {@code message} was taken from {@code mailbox} as part of a merged message.
+         * Called without the mailbox lock.
+         */
+        void merged(Mailbox mailbox, Message message);
+    }
+
+    private static class Envelope {
+        private final Message message;
+        private final long seq;
+        private final long sentAt; // System.nanoTime() when queued
+
+        Envelope(Message message, long seq, long sentAt) {
+            this.message = message;
+            this.seq = seq;
+            this.sentAt = sentAt;
+        }
+    }
+}
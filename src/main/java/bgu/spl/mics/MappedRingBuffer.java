@@ -0,0 +1,233 @@
+package bgu.spl.mics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * A queue of byte records in a memory-mapped file, so two processes on the same
+ * host that map the same file can pass messages without any network.
+ * <p>
+ * One process writes and one process reads. Writers within the writing process
+ * are serialized by {@link #offer}; only one thread of the reading process may
+ * call {@link #poll}.
+ * <p>
+ * The file holds a header with the write position (tail) and the read position
+ * (head), each on a cache line of its own, followed by the records. A record is
+ * its length followed by its bytes, aligned to 4 bytes. A record that does not fit
+ * before the end of the buffer is written at its start, and the gap is marked with
+ * a negative length. Positions only grow; the writer publishes a record by moving
+ * the tail after writing it, and the reader frees it by moving the head after
+ * reading it.
+ * <p>
+ * A mapped buffer has no atomic access on Java 8, so the plain accesses are
+ * ordered by explicit fences: an acquire fence after reading the other side's
+ * position, so the record is not read, or overwritten, before it, and a release
+ * fence before publishing a new position. The fences are those of
+ * {@code VarHandle} when the runtime has it (Java 9 and later); on Java 8 a
+ * write and a read of a volatile field stand in for a full fence.
+ */
+class MappedRingBuffer implements Closeable {
+
+    private static final int MAGIC = 0x47524246; // "GRBF"
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int TAIL_OFFSET = 64;
+    private static final int HEAD_OFFSET = 128;
+    private static final int DATA_OFFSET = 192;
+    private static final int LENGTH_SIZE = 4;
+    private static final int PADDING = -1;
+    private static final MethodHandle ACQUIRE_FENCE = varHandleFence("acquireFence");
+    private static final MethodHandle RELEASE_FENCE = varHandleFence("releaseFence");
+    private static volatile int fallbackFence; // Java 8 only, see fullFence()
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final ByteBuffer writeView; // own positions for the bulk copies, guarded by this
+    private final ByteBuffer readView; // used by the reader only
+    private final int capacity;
+    private final int mask;
+
+    private MappedRingBuffer(RandomAccessFile file, MappedByteBuffer buffer, int capacity) {
+        this.file = file;
+        this.buffer = buffer;
+        this.writeView = buffer.duplicate();
+        this.readView = buffer.duplicate();
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Maps the ring buffer in {@code path}, creating the file if it does not exist.
+     * Both processes open the same file with the same capacity.
+     * <p>
+     * @param capacity the number of bytes for records, a power of two.
+     * @throws IllegalArgumentException if the capacity is not a power of two.
+     * @throws IOException              if the file cannot be mapped, or was created
+     *                                  with another capacity.
+     */
+    static MappedRingBuffer open(Path path, int capacity) throws IOException {
+        if (capacity < 64 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring buffer capacity must be a power of two of at least 64: " + capacity);
+        }
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        try {
+            long size = DATA_OFFSET + (long) capacity;
+            if (file.length() < size) {
+                file.setLength(size); // zero filled, so the positions start at 0
+            }
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (buffer.getInt(MAGIC_OFFSET) == MAGIC) {
+                if (buffer.getInt(CAPACITY_OFFSET) != capacity) {
+                    throw new IOException(path + " holds a ring buffer of " + buffer.getInt(CAPACITY_OFFSET) + " bytes, not " + capacity);
+                }
+            } else {
+                buffer.putInt(CAPACITY_OFFSET, capacity);
+                buffer.putInt(MAGIC_OFFSET, MAGIC);
+            }
+            return new MappedRingBuffer(file, buffer, capacity);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the size of the largest record the buffer can take.
+     */
+    int maxRecordSize() {
+        return capacity / 2 - LENGTH_SIZE;
+    }
+
+    /**
+     * Appends a record holding {@code length} bytes of {@code record}.
+     * <p>
+     * @return false if there is no room for the record right now.
+     * @throws IllegalArgumentException if the record is larger than {@link #maxRecordSize()}.
+     */
+    synchronized boolean offer(byte[] record, int length) {
+        if (length > maxRecordSize()) {
+            throw new IllegalArgumentException("Record of " + length + " bytes does not fit, at most " + maxRecordSize());
+        }
+        int size = align(LENGTH_SIZE + length);
+        long tail = buffer.getLong(TAIL_OFFSET);
+        long head = buffer.getLong(HEAD_OFFSET);
+        acquireFence(); // the room is written after the reader gave it back
+        int index = (int) (tail & mask);
+        int toEnd = capacity - index;
+        int needed = toEnd < size ? toEnd + size : size;
+        if (capacity - (tail - head) < needed) {
+            return false;
+        }
+        if (toEnd < size) {
+            buffer.putInt(DATA_OFFSET + index, PADDING);
+            tail += toEnd;
+            index = 0;
+        }
+        buffer.putInt(DATA_OFFSET + index, length);
+        ((Buffer) writeView).position(DATA_OFFSET + index + LENGTH_SIZE); // Buffer keeps the Java 8 signature
+        writeView.put(record, 0, length);
+        releaseFence(); // the record is written before it is published
+        buffer.putLong(TAIL_OFFSET, tail + size);
+        return true;
+    }
+
+    /**
+     * Removes the oldest record. Must only be called by the single reader.
+     * <p>
+     * @return the bytes of the record, or null if there is none.
+     */
+    byte[] poll() {
+        long head = buffer.getLong(HEAD_OFFSET);
+        long tail = buffer.getLong(TAIL_OFFSET);
+        if (head == tail) {
+            return null;
+        }
+        acquireFence(); // the record is read after its tail was seen
+        int index = (int) (head & mask);
+        int length = buffer.getInt(DATA_OFFSET + index);
+        if (length == PADDING) {
+            head += capacity - index;
+            index = 0;
+            length = buffer.getInt(DATA_OFFSET);
+        }
+        byte[] record = new byte[length];
+        ((Buffer) readView).position(DATA_OFFSET + index + LENGTH_SIZE);
+        readView.get(record, 0, length);
+        releaseFence(); // the record is read before its room is given back
+        buffer.putLong(HEAD_OFFSET, head + align(LENGTH_SIZE + length));
+        return record;
+    }
+
+    /**
+     * @return true if there is no record to read. May be out of date as soon as it returns.
+     */
+    boolean isEmpty() {
+        return buffer.getLong(HEAD_OFFSET) == buffer.getLong(TAIL_OFFSET);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close(); // the mapping stays valid until the buffer is collected
+    }
+
+    private static void acquireFence() {
+        if (ACQUIRE_FENCE == null) {
+            fullFence();
+            return;
+        }
+        try {
+            ACQUIRE_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new AssertionError(e); // VarHandle.acquireFence throws nothing
+        }
+    }
+
+    private static void releaseFence() {
+        if (RELEASE_FENCE == null) {
+            fullFence();
+            return;
+        }
+        try {
+            RELEASE_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new AssertionError(e); // VarHandle.releaseFence throws nothing
+        }
+    }
+
+    /**
+     * A volatile write followed by a volatile read: no access moves across the pair,
+     * and the JVM puts a full hardware fence after the write.
+     */
+    private static void fullFence() {
+        fallbackFence = 0;
+        if (fallbackFence != 0) {
+            throw new AssertionError();
+        }
+    }
+
+    /**
+     * @return the static fence method {@code name} of {@code VarHandle}, or null on
+     *         Java 8, which has none.
+     */
+    private static MethodHandle varHandleFence(String name) {
+        try {
+            Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+            return MethodHandles.publicLookup().findStatic(varHandle, name, MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static int align(int size) {
+        return (size + 3) & ~3;
+    }
+}
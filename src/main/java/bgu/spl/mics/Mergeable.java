@@ -0,0 +1,19 @@
+package bgu.spl.mics;
+
+/**
+ * A {@link Message} that can be merged with a later message of the same type.
+ * <p>
+ * A micro-service that enables coalescing for a mergeable type receives
+ * consecutive pending messages of that type as one merged message, instead of
+ * handling each of them (see {@link MessageBusImpl#enableCoalescing}).
+ *
+ * @param <M> the type of the message, merging returns the same type.
+ */
+public interface Mergeable<M extends Mergeable<M>> extends Message {
+
+    /**
+     * @param later a message of the same type that was sent after this one.
+     * @return a message standing for this message followed by {@code later}.
+     */
+    M merge(M later);
+}
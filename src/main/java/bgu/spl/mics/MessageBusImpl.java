@@ -1,11 +1,15 @@
 package bgu.spl.mics;
 
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
 
 /**
  * The {@link MessageBusImpl class is the implementation of the MessageBus interface.
@@ -19,47 +23,151 @@ public class MessageBusImpl implements MessageBus {
         private static final MessageBusImpl busInstance = new MessageBusImpl();
     }
 
-    private Map<MicroService, LinkedBlockingQueue<Message>> MessagesQueue;
-    private Map<Class<? extends Event<?>>, LinkedBlockingQueue<MicroService>> eventMap;
+    private Map<MicroService, Mailbox> MessagesQueue;
+    private Map<Class<? extends Event<?>>, EventDispatcher> eventMap;
     private Map<Class<? extends Broadcast>, List<MicroService>> broadcastMap;
-    private final Map<Event<?>, Future<?>> eventFutures;
+    private Map<Class<? extends Broadcast>, BroadcastChannel> broadcastChannels;
+    // the types each micro-service subscribed to, so unregister only visits those
+    private Map<MicroService, Set<Class<? extends Message>>> subscriptions;
+    private Map<MicroService, Mailbox.Limit> mailboxLimits;
+    private Map<Class<? extends Message>, Mailbox.Limit> typeLimits;
+    private final Map<BackpressurePolicy, AtomicLong> backpressureCounters;
+    private final FutureRegistry eventFutures;
+    private final BusMetrics metrics;
+    private final AtomicLong sendSequence; // orders messages across mailbox queues and channels
+    private final ToIntFunction<MicroService> mailboxDepth;
+    private final AtomicInteger currentTick; // the clock of ExpiringEvent deadlines
+    private final Mailbox.Hooks mailboxHooks;
+    private final Map<Message, AckGroup> ackGroups; // messages of acknowledged broadcasts still in progress
+    private final ThreadLocal<AckGroup> handlingGroup; // the group of the message a callback is handling
+    private final Object readyLock;
+    private int readyServices; // guarded by readyLock, services done with initialize()
 
-    private MessageBusImpl() {
+    /**
+     * Creates a bus of its own, isolated from {@link #getInstance()} and from any
+     * other bus, so several simulations can run side by side in one process.
+     */
+    public MessageBusImpl() {
         MessagesQueue = new ConcurrentHashMap<>();
         eventMap = new ConcurrentHashMap<>();
         broadcastMap = new ConcurrentHashMap<>();
-        eventFutures = new ConcurrentHashMap<>();
+        broadcastChannels = new ConcurrentHashMap<>();
+        subscriptions = new ConcurrentHashMap<>();
+        mailboxLimits = new ConcurrentHashMap<>();
+        typeLimits = new ConcurrentHashMap<>();
+        backpressureCounters = new EnumMap<>(BackpressurePolicy.class);
+        for (BackpressurePolicy policy : BackpressurePolicy.values()) {
+            backpressureCounters.put(policy, new AtomicLong(0));
+        }
+        eventFutures = new FutureRegistry();
+        metrics = new BusMetrics();
+        sendSequence = new AtomicLong(0);
+        mailboxDepth = m -> {
+            Mailbox q = MessagesQueue.get(m);
+            return q == null ? Integer.MAX_VALUE : q.depth();
+        };
+        currentTick = new AtomicInteger(0);
+        ackGroups = new ConcurrentHashMap<>();
+        handlingGroup = new ThreadLocal<>();
+        readyLock = new Object();
+        mailboxHooks = new Mailbox.Hooks() {
+            @Override
+            public boolean isExpired(Message message) {
+                // may run under the mailbox lock, only reads the tick and the clock
+                if (!(message instanceof ExpiringEvent)) {
+                    return false;
+                }
+                ExpiringEvent<?> e = (ExpiringEvent<?>) message;
+                long deadlineNanos = e.getDeadlineNanos();
+                return e.getDeadlineTick() < currentTick.get()
+                        || (deadlineNanos != ExpiringEvent.NO_DEADLINE_NANOS && System.nanoTime() - deadlineNanos > 0);
+            }
+
+            @Override
+            public void expired(Mailbox mailbox, Message message) {
+                eventFutures.expire((Event<?>) message);
+                released(mailbox, message);
+            }
+
+            @Override
+            public void merged(Mailbox mailbox, Message message) {
+                released(mailbox, message);
+            }
+        };
     }
 
     public <T> void subscribeEvent(Class<? extends Event<T>> type, MicroService m) {
-        eventMap.computeIfAbsent(type, key -> new LinkedBlockingQueue<>()).add(m);
+        subscriptionsOf(m).add(type);
+        eventMap.computeIfAbsent(type, key -> new EventDispatcher()).subscribe(m);
     }
 
     @Override
     public void subscribeBroadcast(Class<? extends Broadcast> type, MicroService m) {
+        subscriptionsOf(m).add(type);
+        BroadcastChannel channel = broadcastChannels.get(type);
+        Mailbox mailbox = MessagesQueue.get(m);
+        if (channel != null && mailbox != null) {
+            if (!channel.isSubscribed(mailbox)) {
+                mailbox.addCursor(channel.subscribe(mailbox));
+            }
+            return;
+        }
         broadcastMap.computeIfAbsent(type, key -> new CopyOnWriteArrayList<>()).add(m);
     }
 
     @Override
     public <T> void complete(Event<T> e, T result) {
-        Future<T> future = (Future<T>) eventFutures.get(e);
-        if (future != null) {
-            future.resolve(result);
-        }
+        eventFutures.complete(e, result); // also drops the entry
     }
 
     @Override
     public void sendBroadcast(Broadcast b) {
+        broadcast(b, currentGroup());
+    }
+
+    /**
+     * Sends {@code b} like {@link #sendBroadcast}, and follows what it causes: the
+     * returned future is resolved once every subscriber handled {@code b}, and
+     * every message sent by those callbacks - and by the callbacks handling them,
+     * and so on - was handled too, or dropped. The subscribers acknowledge through
+     * the bus when their callback returns, see {@link MicroService}.
+     * <p>
+     * {@code sender} itself is not waited for, so it may wait for the future from
+     * a callback. Messages of a channel type that are sent as part of the cascade
+     * go through the subscribers' queues, to be counted exactly.
+     * <p>
+     * @param b      The broadcast to send.
+     * @param sender The micro-service sending {@code b}, or null.
+     * @return a future resolved with null once the cascade of {@code b} was handled.
+     */
+    public Future<Void> sendAcknowledgedBroadcast(Broadcast b, MicroService sender) {
+        AckGroup group = new AckGroup(sender == null ? null : MessagesQueue.get(sender));
+        broadcast(b, group);
+        finish(group); // the sender's hold
+        return group.future();
+    }
+
+    private void broadcast(Broadcast b, AckGroup group) {
+        metrics.sent(b.getClass());
+        track(b, group);
+        BroadcastChannel channel = broadcastChannels.get(b.getClass());
+        long seq;
+        if (channel != null && group == null) {
+            seq = channel.publish(b, sendSequence); // one write for all the channel subscribers
+        } else {
+            seq = sendSequence.incrementAndGet();
+            if (channel != null) {
+                for (Mailbox q : channel.subscribers()) {
+                    deliver(q, b, seq, group);
+                }
+            }
+        }
         List<MicroService> registered = broadcastMap.get(b.getClass()); 
         if (registered != null) {
             for (MicroService m : registered) {
-                LinkedBlockingQueue<Message> q = MessagesQueue.get(m);
+                Mailbox q = MessagesQueue.get(m);
                 if (q != null) {
-                    try {
-                        q.put(b); // Blocking add if the queue is full
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt(); 
-                    }
+                    deliver(q, b, seq, group);
                 }
             }
         }
@@ -67,45 +175,245 @@ public class MessageBusImpl implements MessageBus {
 
     @Override
     public <T> Future<T> sendEvent(Event<T> e) {
-        Queue<MicroService> subscribers = eventMap.get(e.getClass());
-        if (subscribers == null || subscribers.isEmpty()) {
-            return null; 
-        }
-        synchronized (subscribers) {
-            MicroService receiving = subscribers.poll();
-            if (receiving != null) {
-                LinkedBlockingQueue<Message> q = MessagesQueue.get(receiving);
-                if (q != null) {
-                    try {
-                        q.put(e); 
-                    } catch (InterruptedException err) {
-                        Thread.currentThread().interrupt(); 
-                    }
+        metrics.sent(e.getClass());
+        EventDispatcher dispatcher = eventMap.get(e.getClass());
+        if (dispatcher == null) {
+            return null;
+        }
+        return dispatch(dispatcher, e);
+    }
+
+    /**
+     * Same as {@link #sendEvents(List, List)} without the per-event futures.
+     */
+    public <T> Future<List<T>> sendEvents(List<? extends Event<T>> events) {
+        return sendEvents(events, null);
+    }
+
+    /**
+     * Sends every event of {@code events}, in order, as {@link #sendEvent} would,
+     * routing each with the strategy of its type. The futures of the whole batch are
+     * registered at once, the dispatcher of a type is looked up once for consecutive
+     * events of that type, and the batch is awaited through a single future.
+     * <p>
+     * @param events The events to send.
+     * @param into   If not null, gets the future of each event, or null for an
+     *               event no micro-service received, in the order of {@code events}.
+     *               Without it no per-event future is created.
+     * @return a future resolved, once every event is resolved or will never be,
+     *         with their results in the order of {@code events}; the result of an
+     *         event no micro-service received, or that was dropped, expired or left
+     *         unhandled by its receiver, is null.
+     */
+    public <T> Future<List<T>> sendEvents(List<? extends Event<T>> events, List<Future<T>> into) {
+        int first = into == null ? 0 : into.size();
+        // Register before enqueueing, so the handlers can never complete an unknown event
+        FutureRegistry.Batch<T> batch = eventFutures.registerAll(events, into);
+        AckGroup group = currentGroup();
+        Class<?> type = null;
+        EventDispatcher dispatcher = null;
+        for (int i = 0; i < events.size(); i++) {
+            Event<T> e = events.get(i);
+            if (e.getClass() != type) {
+                type = e.getClass();
+                dispatcher = eventMap.get(type);
+            }
+            metrics.sent(type);
+            MicroService receiving = dispatcher == null ? null : dispatcher.next(e, mailboxDepth);
+            Mailbox q = receiving == null ? null : MessagesQueue.get(receiving);
+            boolean delivered = false;
+            if (q != null) {
+                track(e, group);
+                delivered = deliver(q, e, sendSequence.incrementAndGet(), group); // false if dropped by backpressure
+            }
+            if (!delivered) {
+                eventFutures.discard(e); // also counts it in the batch, unless deliver already did
+                if (into != null) {
+                    into.set(first + i, null);
                 }
-                subscribers.add(receiving); // Round-robin
             }
-            subscribers.notifyAll();
         }
-        Future<T> future = new Future<>(); 
-        eventFutures.put(e, future);
+        return batch.future();
+    }
+
+    /**
+     * Routes {@code e} to one of the subscribers of {@code dispatcher} and registers its future.
+     * <p>
+     * @return the future of {@code e}, or null if it was not received.
+     */
+    private <T> Future<T> dispatch(EventDispatcher dispatcher, Event<T> e) {
+        MicroService receiving = dispatcher.next(e, mailboxDepth); // lock-free
+        if (receiving == null) {
+            return null;
+        }
+        Mailbox q = MessagesQueue.get(receiving);
+        if (q == null) {
+            return null; // receiver unregistered in the meantime
+        }
+        // Register before enqueueing, so the handler can never complete an unknown event
+        Future<T> future = eventFutures.register(e);
+        AckGroup group = currentGroup();
+        track(e, group);
+        if (!deliver(q, e, sendSequence.incrementAndGet(), group)) {
+            return null; // dropped by the receiver's backpressure policy
+        }
         return future;
     }
 
+    /**
+     * Puts {@code message} in {@code q}, applying the mailbox and type limits.
+     * <p>
+     * @param group the acknowledged broadcast {@code message} is part of, or null.
+     * @return false if {@code message} itself was dropped.
+     */
+    private boolean deliver(Mailbox q, Message message, long seq, AckGroup group) {
+        if (group != null && group.counts(q)) {
+            group.acquire(); // before the receiver can see it
+        }
+        Mailbox.Limit typeLimit = typeLimits.isEmpty() ? null : typeLimits.get(message.getClass());
+        List<Message> dropped = q.put(message, seq, typeLimit);
+        if (dropped == null) {
+            return true;
+        }
+        boolean delivered = true;
+        for (Message m : dropped) {
+            if (m instanceof Event) {
+                eventFutures.discard((Event<?>) m); // will never be handled
+            }
+            released(q, m);
+            delivered &= m != message;
+        }
+        return delivered;
+    }
+
+    /**
+     * @return the group of the message the calling thread is handling, or null.
+     */
+    private AckGroup currentGroup() {
+        return ackGroups.isEmpty() ? null : handlingGroup.get();
+    }
+
+    /**
+     * Makes {@code message} part of {@code group}, before it is delivered.
+     */
+    private void track(Message message, AckGroup group) {
+        if (group != null) {
+            group.add(message);
+            ackGroups.put(message, group);
+        }
+    }
+
+    /**
+     * Called by {@code m} before its callback handles {@code message}: if the
+     * message is part of an acknowledged broadcast, what the callback sends joins it.
+     * <p>
+     * @return the group to pass to {@link #acknowledge} once the callback returned,
+     *         or null if there is nothing to acknowledge.
+     */
+    AckGroup beginHandling(Message message, MicroService m) {
+        if (ackGroups.isEmpty()) {
+            return null;
+        }
+        AckGroup group = ackGroups.get(message);
+        if (group == null || !group.counts(MessagesQueue.get(m))) {
+            return null;
+        }
+        handlingGroup.set(group);
+        return group;
+    }
+
+    /**
+     * Called by a micro-service once its callback for a message of {@code group} returned.
+     */
+    void acknowledge(AckGroup group) {
+        handlingGroup.remove();
+        finish(group);
+    }
+
+    /**
+     * Called by {@code m} for a message it took but will not handle, because it terminated.
+     * The future of a skipped event is forgotten, as for the events left in a queue on
+     * {@link #unregister}.
+     */
+    void skipped(Message message, MicroService m) {
+        if (message instanceof Event) {
+            eventFutures.discard((Event<?>) message);
+        }
+        Mailbox q = MessagesQueue.get(m);
+        if (q != null) {
+            released(q, message);
+        }
+    }
+
+    /**
+     * Counts the delivery of {@code message} to {@code q} as done without a callback.
+     */
+    private void released(Mailbox q, Message message) {
+        if (ackGroups.isEmpty()) {
+            return;
+        }
+        AckGroup group = ackGroups.get(message);
+        if (group != null && group.counts(q)) {
+            finish(group);
+        }
+    }
+
+    private void finish(AckGroup group) {
+        if (group.release()) {
+            for (Message message : group.messages()) {
+                ackGroups.remove(message, group);
+            }
+        }
+    }
+
     @Override
     public void register(MicroService m) {
-        MessagesQueue.computeIfAbsent(m, key -> new LinkedBlockingQueue<>());
+        MessagesQueue.computeIfAbsent(m, key -> {
+            Mailbox mailbox = new Mailbox(backpressureCounters, metrics.forService(m), mailboxHooks);
+            mailbox.setLimit(mailboxLimits.get(m));
+            return mailbox;
+        });
     }
 
+    private Set<Class<? extends Message>> subscriptionsOf(MicroService m) {
+        return subscriptions.computeIfAbsent(m, key -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * Only touches the subscriptions of {@code m} and takes no bus-wide lock, so
+     * services that unregister at the same time do not wait for each other.
+     * A micro-service subscribes and unregisters from its own thread only.
+     */
     @Override
-    public synchronized void unregister(MicroService m) {
-        eventMap.values().forEach(queue -> queue.remove(m));
-        broadcastMap.values().forEach(list -> list.remove(m));
-        MessagesQueue.remove(m);
+    public void unregister(MicroService m) {
+        Set<Class<? extends Message>> types = subscriptions.remove(m);
+        if (types != null) {
+            for (Class<? extends Message> type : types) {
+                EventDispatcher dispatcher = eventMap.get(type);
+                if (dispatcher != null) {
+                    dispatcher.unsubscribe(m);
+                }
+                List<MicroService> registered = broadcastMap.get(type);
+                if (registered != null) {
+                    registered.remove(m);
+                }
+            }
+        }
+        Mailbox q = MessagesQueue.remove(m);
+        if (q != null) {
+            // Events left in the queue will never be handled, forget their futures
+            for (Message pending : q.close()) {
+                if (pending instanceof Event) {
+                    eventFutures.discard((Event<?>) pending);
+                }
+                released(q, pending);
+            }
+        }
     }
 
     @Override
     public Message awaitMessage(MicroService m) throws InterruptedException {
-        LinkedBlockingQueue<Message> myQueue = MessagesQueue.get(m); 
+        Mailbox myQueue = MessagesQueue.get(m); 
         if (myQueue == null) {
             throw new IllegalStateException("MicroService " + m + " is not registered.");
         }
@@ -113,19 +421,283 @@ public class MessageBusImpl implements MessageBus {
         return ret;
     }
 
+    /**
+     * Like {@link #awaitMessage}, but takes up to {@code max} messages at once:
+     * waits until at least one message is available, then also takes the
+     * messages that are already waiting, in order, without blocking again.
+     * <p>
+     * @param m    The registered micro-service taking messages from its queue.
+     * @param into The list the messages are added to.
+     * @param max  The maximal number of messages to take, at least 1.
+     * @return the number of messages taken.
+     * @throws InterruptedException if interrupted while waiting for a message.
+     * @throws IllegalStateException if {@code m} was never registered.
+     */
+    public int awaitMessages(MicroService m, List<Message> into, int max) throws InterruptedException {
+        return mailboxOf(m).drainTo(into, max);
+    }
+
+    /**
+     * Takes up to {@code max} messages that are already waiting for {@code m},
+     * in order, without waiting.
+     * <p>
+     * @return the number of messages taken, 0 if there are none.
+     * @throws IllegalStateException if {@code m} was never registered.
+     */
+    int pollMessages(MicroService m, List<Message> into, int max) {
+        return mailboxOf(m).drainAvailable(into, max);
+    }
+
+    /**
+     * Takes the oldest {@link ControlMessage} waiting for {@code m}, without waiting.
+     * Cheap when there is none, so it can be checked between any two messages.
+     * <p>
+     * @return the control message, or null if there is none.
+     * @throws IllegalStateException if {@code m} was never registered.
+     */
+    Message pollControlMessage(MicroService m) {
+        return mailboxOf(m).pollControl();
+    }
+
+    /**
+     * Called by a consumer of {@code m} that stops reading until its message
+     * listener is called, see {@link Mailbox#idle()}.
+     * <p>
+     * @return true if there are messages waiting for {@code m}, so it must not stop.
+     */
+    boolean idle(MicroService m) {
+        Mailbox myQueue = MessagesQueue.get(m);
+        return myQueue != null && myQueue.idle();
+    }
+
+    /**
+     * Calls {@code listener}, on the sender's thread, every time a message becomes
+     * available to {@code m}, until {@code m} is unregistered.
+     * <p>
+     * @throws IllegalStateException if {@code m} was never registered.
+     */
+    void setMessageListener(MicroService m, Runnable listener) {
+        mailboxOf(m).setListener(listener);
+    }
+
+    private Mailbox mailboxOf(MicroService m) {
+        Mailbox myQueue = MessagesQueue.get(m);
+        if (myQueue == null) {
+            throw new IllegalStateException("MicroService " + m + " is not registered.");
+        }
+        return myQueue;
+    }
+
+    /**
+     * @return the message counts, mailbox depths and latencies recorded so far,
+     *         per message type and per micro-service.
+     */
+    public MetricsSnapshot getMetrics() {
+        return metrics.snapshot(m -> {
+            Mailbox q = MessagesQueue.get(m);
+            return q == null ? 0 : q.depth();
+        });
+    }
+
+    /**
+     * @return the counters {@code m}'s callback times are recorded in.
+     */
+    BusMetrics.ServiceCounters metricsOf(MicroService m) {
+        return metrics.forService(m);
+    }
+
+    /**
+     * Delivers broadcasts of type {@code type} through a ring buffer instead of
+     * the subscribers' queues: sending one costs a single write no matter how
+     * many micro-services are subscribed, and the subscribers read it at their
+     * own pace. The sender waits when the slowest subscriber is {@code capacity}
+     * broadcasts behind. A subscriber that reads nothing for ten seconds while it
+     * blocks the sender is dropped from the channel.
+     * <p>
+     * Should be called before micro-services subscribe to {@code type};
+     * registered subscribers that were already subscribed are moved to the channel.
+     * <p>
+     * @param type     The broadcast type to deliver through a channel.
+     * @param capacity The number of broadcasts the channel can hold.
+     * @throws IllegalArgumentException if {@code type} is a {@link ControlMessage},
+     *                                  those must overtake the queued messages.
+     */
+    public void enableBroadcastChannel(Class<? extends Broadcast> type, int capacity) {
+        enableBroadcastChannel(type, capacity, BroadcastChannel.DEFAULT_STALL_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Same as {@link #enableBroadcastChannel(Class, int)}, dropping a subscriber
+     * that blocks the sender after {@code stallTimeout} without reading anything.
+     */
+    public void enableBroadcastChannel(Class<? extends Broadcast> type, int capacity, long stallTimeout, TimeUnit unit) {
+        if (ControlMessage.class.isAssignableFrom(type)) {
+            throw new IllegalArgumentException("Control messages cannot use a channel: " + type.getName());
+        }
+        broadcastChannels.computeIfAbsent(type, key -> new BroadcastChannel(capacity, unit.toNanos(stallTimeout)));
+        List<MicroService> subscribed = broadcastMap.get(type);
+        if (subscribed != null) {
+            for (MicroService m : subscribed) {
+                if (MessagesQueue.containsKey(m)) {
+                    subscribed.remove(m);
+                    subscribeBroadcast(type, m);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets how events of type {@code type} are spread between its subscribers.
+     * The default is {@link RoutingStrategies#roundRobin()}.
+     * <p>
+     * @param type     The event type to route.
+     * @param strategy The strategy, not shared with other event types.
+     */
+    public void setRoutingStrategy(Class<? extends Event<?>> type, RoutingStrategy strategy) {
+        eventMap.computeIfAbsent(type, key -> new EventDispatcher()).setStrategy(strategy);
+    }
+
+    /**
+     * Lets {@code m} receive consecutive pending messages of {@code type} as a single
+     * merged message (see {@link Mergeable}), so a micro-service that fell behind
+     * catches up in one callback instead of one per message.
+     * <p>
+     * @param type The mergeable message type to coalesce.
+     * @param m    The registered micro-service that opts in.
+     * @throws IllegalStateException if {@code m} is not registered.
+     */
+    public void enableCoalescing(Class<? extends Mergeable<?>> type, MicroService m) {
+        Mailbox q = MessagesQueue.get(m);
+        if (q == null) {
+            throw new IllegalStateException("MicroService " + m + " is not registered.");
+        }
+        q.enableCoalescing(type);
+    }
+
+    /**
+     * Bounds the mailbox of {@code m} to {@code capacity} queued messages, of any
+     * type. Applies to the current mailbox of {@code m} and to the one created when
+     * it registers again.
+     * <p>
+     * A dropped event is never handled, and {@link #sendEvent} returns null for an
+     * event that was dropped on arrival. With {@link BackpressurePolicy#BLOCK} a
+     * micro-service must never send to its own full mailbox.
+     * <p>
+     * @param m        The micro-service whose mailbox is bounded.
+     * @param capacity The maximal number of queued messages.
+     * @param policy   What to do with new messages when the mailbox is full.
+     */
+    public void setMailboxCapacity(MicroService m, int capacity, BackpressurePolicy policy) {
+        Mailbox.Limit limit = new Mailbox.Limit(capacity, policy);
+        mailboxLimits.put(m, limit);
+        Mailbox q = MessagesQueue.get(m);
+        if (q != null) {
+            q.setLimit(limit);
+        }
+    }
+
+    /**
+     * Bounds every mailbox to {@code capacity} queued messages of type {@code type},
+     * on top of any bound set for the whole mailbox.
+     * <p>
+     * @param type     The message type to bound.
+     * @param capacity The maximal number of queued messages of {@code type} per mailbox.
+     * @param policy   What to do with new messages of {@code type} when the bound is reached.
+     * @see #setMailboxCapacity(MicroService, int, BackpressurePolicy)
+     */
+    public void setMailboxCapacity(Class<? extends Message> type, int capacity, BackpressurePolicy policy) {
+        typeLimits.put(type, new Mailbox.Limit(capacity, policy));
+    }
+
+    /**
+     * @return how many times a full mailbox applied {@code policy}.
+     */
+    public long getBackpressureCount(BackpressurePolicy policy) {
+        return backpressureCounters.get(policy).get();
+    }
+
+    /**
+     * Moves the clock {@link ExpiringEvent} tick deadlines are checked against to
+     * {@code tick}. The clock never goes back.
+     */
+    public void advanceTick(int tick) {
+        currentTick.accumulateAndGet(tick, Math::max);
+    }
+
+    /**
+     * @return the last tick passed to {@link #advanceTick}, 0 before the first one.
+     */
+    public int getCurrentTick() {
+        return currentTick.get();
+    }
+
+    /**
+     * Called by a micro-service once its {@code initialize()} returned, so it is
+     * registered and subscribed to everything it listens to.
+     */
+    void serviceReady() {
+        synchronized (readyLock) {
+            readyServices++;
+            readyLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until {@code services} micro-services of this bus are done with their
+     * {@code initialize()}, so a message sent afterwards reaches every subscriber
+     * it would once the simulation runs.
+     * <p>
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitReady(int services) throws InterruptedException {
+        synchronized (readyLock) {
+            while (readyServices < services) {
+                readyLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Sets how long a future may stay unresolved before the bus forgets it.
+     * The sender still holds the future, only the bus reference is dropped.
+     */
+    public void setFutureExpiry(long timeout, TimeUnit unit) {
+        eventFutures.setExpiry(timeout, unit);
+    }
+
+    /**
+     * @return the bus shared by every micro-service that is not given a bus of its own.
+     */
     public static MessageBusImpl getInstance() {
         return MessageBusHolder.busInstance;
     }
 
     //ClearData only for testing purposes
     public void clearData() {
+        MessagesQueue.values().forEach(Mailbox::close);
         MessagesQueue.clear();
         eventMap.clear();
         broadcastMap.clear();
+        broadcastChannels.clear();
+        subscriptions.clear();
+        mailboxLimits.clear();
+        typeLimits.clear();
+        backpressureCounters.values().forEach(counter -> counter.set(0));
         eventFutures.clear();
+        metrics.clear();
+        currentTick.set(0);
+        ackGroups.clear();
+        synchronized (readyLock) {
+            readyServices = 0;
+        }
     }
     //Usage Only in test
-    public LinkedBlockingQueue<Message> getMessegeQueue(MicroService serivce){ 
+    Mailbox getMessegeQueue(MicroService serivce){ 
         return this.MessagesQueue.get(serivce);
     }
+    //Usage Only in test
+    public int getPendingFuturesCount() {
+        eventFutures.sweepExpired();
+        return eventFutures.size();
+    }
 }
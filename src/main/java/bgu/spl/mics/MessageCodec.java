@@ -0,0 +1,39 @@
+package bgu.spl.mics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Turns messages, and the results of events, into bytes and back, so they can
+ * be passed to another process by a {@link SharedMemoryMessageBus}.
+ * The framework does not know the application messages, the application
+ * provides the codec.
+ */
+public interface MessageCodec {
+
+    /**
+     * @return true if messages of type {@code type} can be written and read back.
+     */
+    boolean supports(Class<? extends Message> type);
+
+    /**
+     * Writes {@code message}, of a supported type, to {@code out}.
+     */
+    void writeMessage(Message message, DataOutput out) throws IOException;
+
+    /**
+     * Reads back a message written by {@link #writeMessage}.
+     */
+    Message readMessage(DataInput in) throws IOException;
+
+    /**
+     * Writes the result of a supported event, which may be null, to {@code out}.
+     */
+    void writeResult(Object result, DataOutput out) throws IOException;
+
+    /**
+     * Reads back a result written by {@link #writeResult}.
+     */
+    Object readResult(DataInput in) throws IOException;
+}
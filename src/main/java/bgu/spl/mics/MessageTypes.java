@@ -0,0 +1,31 @@
+package bgu.spl.mics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives every {@link Message} class a small, dense integer id, so per-type data
+ * can be kept in arrays indexed by the id instead of in maps keyed by the class.
+ * <p>
+ * Ids are assigned on first use and never change; the lookup is a
+ * {@link ClassValue}, which caches the id on the class itself.
+ */
+final class MessageTypes {
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+    private static final ClassValue<Integer> IDS = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            return NEXT_ID.getAndIncrement();
+        }
+    };
+
+    private MessageTypes() {
+    }
+
+    /**
+     * @return the id of {@code type}, the same one on every call.
+     */
+    static int idOf(Class<?> type) {
+        return IDS.get(type);
+    }
+}
@@ -0,0 +1,193 @@
+package bgu.spl.mics;
+
+import java.util.List;
+
+/**
+ * A point-in-time copy of the {@link MessageBusImpl} metrics: per message type
+ * and per micro-service send and receive counts, mailbox depths, the time
+ * messages waited in mailboxes and the time callbacks took.
+ * <p>
+ * The counters are read one by one while the bus keeps running, so the numbers
+ * of a snapshot may be slightly apart from each other.
+ */
+public class MetricsSnapshot {
+    private final List<TypeMetrics> messageTypes;
+    private final List<ServiceMetrics> services;
+
+    MetricsSnapshot(List<TypeMetrics> messageTypes, List<ServiceMetrics> services) {
+        this.messageTypes = messageTypes;
+        this.services = services;
+    }
+
+    public List<TypeMetrics> getMessageTypes() {
+        return messageTypes;
+    }
+
+    public List<ServiceMetrics> getServices() {
+        return services;
+    }
+
+    /**
+     * Metrics of one message class.
+     */
+    public static class TypeMetrics {
+        private final String type;
+        private final long sent;
+        private final long received;
+        private final long expired;
+        private final Latency queueLatency;
+        private final Latency callbackTime;
+
+        TypeMetrics(String type, long sent, long received, long expired, Latency queueLatency, Latency callbackTime) {
+            this.type = type;
+            this.sent = sent;
+            this.received = received;
+            this.expired = expired;
+            this.queueLatency = queueLatency;
+            this.callbackTime = callbackTime;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        /** @return how many messages of this type were sent. */
+        public long getSent() {
+            return sent;
+        }
+
+        /** @return how many messages of this type were taken from mailboxes. */
+        public long getReceived() {
+            return received;
+        }
+
+        /** @return how many messages of this type were dropped from mailboxes past their deadline. */
+        public long getExpired() {
+            return expired;
+        }
+
+        /** @return the time from sending a message to taking it from a mailbox. */
+        public Latency getQueueLatency() {
+            return queueLatency;
+        }
+
+        /** @return the time callbacks handling this type took. */
+        public Latency getCallbackTime() {
+            return callbackTime;
+        }
+    }
+
+    /**
+     * Metrics of one micro-service's mailbox and callbacks.
+     */
+    public static class ServiceMetrics {
+        private final String service;
+        private final long sent;
+        private final long received;
+        private final int depth;
+        private final int maxDepth;
+        private final long channelEvictions;
+        private final Latency queueLatency;
+        private final Latency callbackTime;
+
+        ServiceMetrics(String service, long sent, long received, int depth, int maxDepth, long channelEvictions,
+                       Latency queueLatency, Latency callbackTime) {
+            this.service = service;
+            this.sent = sent;
+            this.received = received;
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.channelEvictions = channelEvictions;
+            this.queueLatency = queueLatency;
+            this.callbackTime = callbackTime;
+        }
+
+        public String getService() {
+            return service;
+        }
+
+        /** @return how many messages the micro-service sent. */
+        public long getSent() {
+            return sent;
+        }
+
+        /** @return how many messages the micro-service took from its mailbox. */
+        public long getReceived() {
+            return received;
+        }
+
+        /** @return the number of messages waiting in the mailbox, 0 once unregistered. */
+        public int getDepth() {
+            return depth;
+        }
+
+        /** @return the largest number of messages that waited in the mailbox at once. */
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        /**
+         * @return how many broadcast channels stopped delivering to the micro-service
+         *         because it did not read them for their stall timeout.
+         */
+        public long getChannelEvictions() {
+            return channelEvictions;
+        }
+
+        /** @return the time messages waited in the mailbox. */
+        public Latency getQueueLatency() {
+            return queueLatency;
+        }
+
+        /** @return the time the micro-service's callbacks took. */
+        public Latency getCallbackTime() {
+            return callbackTime;
+        }
+    }
+
+    /**
+     * A summary of recorded durations, in nanoseconds. Percentiles are bucket
+     * upper bounds, accurate to a factor of two.
+     */
+    public static class Latency {
+        private final long count;
+        private final long meanNanos;
+        private final long p50Nanos;
+        private final long p90Nanos;
+        private final long p99Nanos;
+        private final long maxNanos;
+
+        Latency(long count, long meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long maxNanos) {
+            this.count = count;
+            this.meanNanos = meanNanos;
+            this.p50Nanos = p50Nanos;
+            this.p90Nanos = p90Nanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return meanNanos;
+        }
+
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+
+        public long getP90Nanos() {
+            return p90Nanos;
+        }
+
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+    }
+}
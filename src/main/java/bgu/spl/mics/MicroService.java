@@ -1,7 +1,8 @@
 package bgu.spl.mics;
 
-import java.util.Map;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * The MicroService is an abstract class that any micro-service in the system
@@ -28,9 +29,12 @@ public abstract class MicroService implements Runnable {
 
     private boolean terminated = false;
     private final String name;
-    private final Map<Class<? extends Message>, Callback<?>> callbacks;
+    // callbacks indexed by message type id (see MessageTypes), null for types without one
+    private Callback<Message>[] callbacks;
     private final MessageBusImpl messageBus;
     private int numEventReceived = 0;
+    private int batchSize = 1;
+    private BusMetrics.ServiceCounters metrics; // set by start()
 
 
     /**
@@ -38,9 +42,18 @@ public abstract class MicroService implements Runnable {
      *             does not have to be unique)
      */
     public MicroService(String name) {
+        this(name, MessageBusImpl.getInstance());
+    }
+
+    /**
+     * @param name       the micro-service name.
+     * @param messageBus the bus the micro-service registers on and sends through,
+     *                   instead of the shared one.
+     */
+    public MicroService(String name, MessageBusImpl messageBus) {
         this.name = name;
-        this.callbacks = new HashMap<>();
-        this.messageBus = MessageBusImpl.getInstance();
+        this.callbacks = newCallbackTable(8);
+        this.messageBus = messageBus;
     }
 
     /**
@@ -65,8 +78,8 @@ public abstract class MicroService implements Runnable {
      *                 queue.
      */
     protected final <T, E extends Event<T>> void subscribeEvent(Class<E> type, Callback<E> callback) {
-        MessageBusImpl.getInstance().subscribeEvent(type, this);
-        callbacks.put(type, callback);
+        messageBus.subscribeEvent(type, this);
+        putCallback(type, callback);
     }
 
     /**
@@ -90,8 +103,20 @@ public abstract class MicroService implements Runnable {
      *                 queue.
      */
     protected final <B extends Broadcast> void subscribeBroadcast(Class<B> type, Callback<B> callback) {
-        MessageBusImpl.getInstance().subscribeBroadcast(type, this);
-        callbacks.put(type, callback);
+        messageBus.subscribeBroadcast(type, this);
+        putCallback(type, callback);
+    }
+
+    /**
+     * Asks the message-bus to merge consecutive pending messages of type
+     * {@code type} before they are handed to this micro-service, so when it falls
+     * behind it handles them in a single callback. The callback receives the
+     * merged message (see {@link Mergeable#merge}).
+     * <p>
+     * @param type The {@link Class} representing the mergeable message type.
+     */
+    protected final void enableCoalescing(Class<? extends Mergeable<?>> type) {
+        messageBus.enableCoalescing(type, this);
     }
 
     /**
@@ -108,12 +133,43 @@ public abstract class MicroService implements Runnable {
      * 	       			null in case no micro-service has subscribed to {@code e.getClass()}.
      */
     protected final <T> Future<T> sendEvent(Event<T> e) {
+        metrics.sent(e.getClass());
         Future<T> future = messageBus.sendEvent(e);
         if (future == null)
             return null; 
         return future;
     }
 
+    /**
+     * Sends all of {@code events} in one pass, see {@link MessageBusImpl#sendEvents(List)}.
+     * <p>
+     * @param <T>    The type of the expected results of the events.
+     * @param events The events to send, in order.
+     * @return a {@link Future} resolved with the results of the events, in order,
+     *         once all of them are resolved. An event no micro-service received has
+     *         a null result.
+     */
+    protected final <T> Future<List<T>> sendEvents(List<? extends Event<T>> events) {
+        countSent(events);
+        return messageBus.sendEvents(events);
+    }
+
+    /**
+     * Same as {@link #sendEvents(List)}, also handing back the future of each event,
+     * see {@link MessageBusImpl#sendEvents(List, List)}.
+     * <p>
+     * @param <T>    The type of the expected results of the events.
+     * @param events The events to send, in order.
+     * @param into   Gets the future of each event, in order, or null for an event no
+     *               micro-service received.
+     * @return a {@link Future} resolved with the results of the events, in order,
+     *         once all of them are resolved.
+     */
+    protected final <T> Future<List<T>> sendEvents(List<? extends Event<T>> events, List<Future<T>> into) {
+        countSent(events);
+        return messageBus.sendEvents(events, into);
+    }
+
     /**
      * A Micro-Service calls this method in order to send the broadcast message {@code b} using the message-bus
      * to all the services subscribed to it.
@@ -121,9 +177,23 @@ public abstract class MicroService implements Runnable {
      * @param b The broadcast message to send
      */
     protected final void sendBroadcast(Broadcast b) {
+        metrics.sent(b.getClass());
         messageBus.sendBroadcast(b);
     }
 
+    /**
+     * Sends {@code b} like {@link #sendBroadcast}, and returns a {@link Future}
+     * resolved once every other subscriber handled it, along with everything their
+     * callbacks sent in turn (see {@link MessageBusImpl#sendAcknowledgedBroadcast}).
+     * <p>
+     * @param b The broadcast message to send
+     * @return a Future resolved with null once the cascade of {@code b} was handled.
+     */
+    protected final Future<Void> sendAcknowledgedBroadcast(Broadcast b) {
+        metrics.sent(b.getClass());
+        return messageBus.sendAcknowledgedBroadcast(b, this);
+    }
+
     /**
      * Completes the received request {@code e} with the result {@code result}
      * using the message-bus.
@@ -138,6 +208,23 @@ public abstract class MicroService implements Runnable {
         messageBus.complete(e, result);
     }
 
+    /**
+     * Sets how many waiting messages the event loop takes from the message-bus at
+     * once. The messages of a batch are still handled one by one, in order; taking
+     * them together saves a queue lock and possibly a park per message when the
+     * micro-service is busy. May be called from the constructor or from
+     * {@link #initialize()}.
+     * <p>
+     * @param batchSize the maximal number of messages taken at once, 1 (the
+     *                  default) takes one message at a time.
+     */
+    protected final void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
     /**
      * this method is called once when the event loop starts.
      */
@@ -165,22 +252,126 @@ public abstract class MicroService implements Runnable {
      */
     @Override
     public final void run() {
-        messageBus.register(this);
-        initialize();
-        while (!terminated) {
-            try {
-                Message message = messageBus.awaitMessage(this);
-                numEventReceived ++;
-                Callback<Message> callback = (Callback<Message>) callbacks.get(message.getClass());
-                if (callback != null) {
-                    callback.call(message);
+        try {
+            start();
+            List<Message> batch = new ArrayList<>(batchSize);
+            while (!terminated) {
+                try {
+                    if (batchSize == 1) {
+                        handle(messageBus.awaitMessage(this));
+                    } else {
+                        batch.clear();
+                        messageBus.awaitMessages(this, batch, batchSize);
+                        handleAll(batch);
+                    }
+                } catch (InterruptedException e) {
+                    terminate();
                 }
-            } catch (InterruptedException e) {
-                terminate();
             }
+        } finally {
+            stop(); // also when a callback threw, so nothing waits on a dead service
         }
+    }
+
+    /**
+     * Registers the micro-service and initializes it, like the start of {@link #run()},
+     * then tells the bus it is ready (see {@link MessageBusImpl#awaitReady}), even if
+     * {@link #initialize()} failed, so nobody waits for it forever.
+     */
+    void start() {
+        messageBus.register(this);
+        metrics = messageBus.metricsOf(this);
+        try {
+            initialize();
+        } finally {
+            messageBus.serviceReady();
+        }
+    }
+
+    /**
+     * Handles up to {@code max} messages that are already waiting, in order, the
+     * same way {@link #run()} does, without waiting for more.
+     * <p>
+     * @param batch an empty list to hold the taken messages.
+     * @return the number of messages taken.
+     */
+    int runAvailable(List<Message> batch, int max) {
+        int taken = messageBus.pollMessages(this, batch, max);
+        handleAll(batch);
+        batch.clear();
+        return taken;
+    }
+
+    /**
+     * Unregisters the micro-service, like the end of {@link #run()}.
+     */
+    void stop() {
         messageBus.unregister(this);
     }
+
+    boolean isTerminated() {
+        return terminated;
+    }
+
+    MessageBusImpl getMessageBus() {
+        return messageBus;
+    }
+
+    private void handleAll(List<Message> batch) {
+        // the rest of the batch is dropped once a callback terminates the loop
+        int i = 0;
+        while (i < batch.size() && !terminated) {
+            // a control message sent while the batch is handled goes before the rest of it
+            Message control = messageBus.pollControlMessage(this);
+            if (control != null) {
+                handle(control);
+            } else {
+                handle(batch.get(i++));
+            }
+        }
+        for (; i < batch.size(); i++) {
+            messageBus.skipped(batch.get(i), this);
+        }
+    }
+
+    private void handle(Message message) {
+        numEventReceived ++;
+        // acknowledged once the callback returned, see MessageBusImpl#sendAcknowledgedBroadcast
+        AckGroup group = messageBus.beginHandling(message, this);
+        try {
+            int id = MessageTypes.idOf(message.getClass());
+            Callback<Message>[] table = callbacks;
+            if (id < table.length && table[id] != null) {
+                long start = System.nanoTime();
+                table[id].call(message);
+                metrics.handled(message.getClass(), System.nanoTime() - start);
+            }
+        } finally {
+            if (group != null) {
+                messageBus.acknowledge(group);
+            }
+        }
+    }
+
+    private void countSent(List<? extends Event<?>> events) {
+        for (int i = 0; i < events.size(); i++) {
+            metrics.sent(events.get(i).getClass());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void putCallback(Class<? extends Message> type, Callback<?> callback) {
+        int id = MessageTypes.idOf(type);
+        if (id >= callbacks.length) {
+            callbacks = Arrays.copyOf(callbacks, Math.max(id + 1, callbacks.length * 2));
+        }
+        callbacks[id] = (Callback<Message>) callback;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Callback<Message>[] newCallbackTable(int size) {
+        return (Callback<Message>[]) new Callback<?>[size];
+    }
     public int GetNumEventReceived(){ //usage in test only
         return numEventReceived;
     }
@@ -0,0 +1,199 @@
+package bgu.spl.mics;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * The {@link RoutingStrategy} implementations offered by the message-bus.
+ * <p>
+ * Every call returns a new strategy, so stateful strategies (such as the
+ * round-robin cursor) are never shared between event types.
+ */
+public final class RoutingStrategies {
+
+    private RoutingStrategies() {
+    }
+
+    /**
+     * @return a strategy that gives each event to the next subscriber, in
+     *         subscription order. This is the default.
+     */
+    public static RoutingStrategy roundRobin() {
+        return new RoundRobin();
+    }
+
+    /**
+     * @return a strategy that gives each event to the subscriber with the fewest
+     *         waiting messages. Ties are broken in round-robin order.
+     */
+    public static RoutingStrategy leastLoaded() {
+        return new LeastLoaded();
+    }
+
+    /**
+     * @return a strategy that samples two random subscribers and gives the event
+     *         to the one with fewer waiting messages. Close to least-loaded
+     *         balancing while reading only two mailboxes per event.
+     */
+    public static RoutingStrategy powerOfTwoChoices() {
+        return new PowerOfTwoChoices();
+    }
+
+    /**
+     * @return a strategy that sends all the {@link KeyedEvent}s with equal keys to
+     *         the same subscriber, chosen by consistent hashing: when a subscriber
+     *         joins or leaves only the keys of about one subscriber move. Events
+     *         without a key are routed round-robin.
+     */
+    public static RoutingStrategy keyAffinity() {
+        return new KeyAffinity();
+    }
+
+    /**
+     * @param name one of {@code round-robin}, {@code least-loaded}, {@code power-of-two},
+     *             {@code key-affinity}.
+     * @return a new strategy of the given name.
+     * @throws IllegalArgumentException if the name is unknown.
+     */
+    public static RoutingStrategy forName(String name) {
+        switch (name) {
+            case "round-robin":
+                return roundRobin();
+            case "least-loaded":
+                return leastLoaded();
+            case "power-of-two":
+                return powerOfTwoChoices();
+            case "key-affinity":
+                return keyAffinity();
+            default:
+                throw new IllegalArgumentException("Unknown routing strategy: " + name);
+        }
+    }
+
+    // masking keeps the index positive after the cursor overflows
+    private static int nextIndex(AtomicInteger cursor, int length) {
+        return (cursor.getAndIncrement() & Integer.MAX_VALUE) % length;
+    }
+
+    private static class RoundRobin implements RoutingStrategy {
+        private final AtomicInteger cursor = new AtomicInteger(0);
+
+        @Override
+        public MicroService select(Event<?> e, MicroService[] subscribers, ToIntFunction<MicroService> load) {
+            return subscribers[nextIndex(cursor, subscribers.length)];
+        }
+    }
+
+    private static class LeastLoaded implements RoutingStrategy {
+        private final AtomicInteger cursor = new AtomicInteger(0);
+
+        @Override
+        public MicroService select(Event<?> e, MicroService[] subscribers, ToIntFunction<MicroService> load) {
+            int start = nextIndex(cursor, subscribers.length);
+            MicroService best = subscribers[start];
+            int bestLoad = load.applyAsInt(best);
+            for (int i = 1; i < subscribers.length && bestLoad > 0; i++) {
+                MicroService candidate = subscribers[(start + i) % subscribers.length];
+                int candidateLoad = load.applyAsInt(candidate);
+                if (candidateLoad < bestLoad) {
+                    best = candidate;
+                    bestLoad = candidateLoad;
+                }
+            }
+            return best;
+        }
+    }
+
+    private static class PowerOfTwoChoices implements RoutingStrategy {
+        @Override
+        public MicroService select(Event<?> e, MicroService[] subscribers, ToIntFunction<MicroService> load) {
+            if (subscribers.length == 1) {
+                return subscribers[0];
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(subscribers.length);
+            int second = random.nextInt(subscribers.length - 1);
+            if (second >= first) {
+                second++; // two distinct subscribers
+            }
+            MicroService a = subscribers[first];
+            MicroService b = subscribers[second];
+            return load.applyAsInt(b) < load.applyAsInt(a) ? b : a;
+        }
+    }
+
+    private static class KeyAffinity implements RoutingStrategy {
+        // points per subscriber on the hash ring, more points spread the keys more evenly
+        private static final int VIRTUAL_NODES = 64;
+
+        private final RoundRobin unkeyed = new RoundRobin();
+        private volatile HashRing ring;
+
+        @Override
+        public MicroService select(Event<?> e, MicroService[] subscribers, ToIntFunction<MicroService> load) {
+            Object key = e instanceof KeyedEvent ? ((KeyedEvent<?>) e).getRoutingKey() : null;
+            if (key == null) {
+                return unkeyed.select(e, subscribers, load);
+            }
+            HashRing current = ring;
+            if (current == null || current.subscribers != subscribers) {
+                // the subscribers changed, rebuild; racing senders build equal rings
+                current = new HashRing(subscribers);
+                ring = current;
+            }
+            return current.owner(mix(key.hashCode()));
+        }
+
+        private static class HashRing {
+            private final MicroService[] subscribers;
+            private final long[] points; // sorted
+            private final MicroService[] owners;
+
+            HashRing(MicroService[] subscribers) {
+                this.subscribers = subscribers;
+                int size = subscribers.length * VIRTUAL_NODES;
+                long[] unsorted = new long[size];
+                Map<Long, MicroService> ownerOf = new HashMap<>(size * 2);
+                for (int i = 0; i < subscribers.length; i++) {
+                    long base = (long) System.identityHashCode(subscribers[i]) << 32;
+                    for (int v = 0; v < VIRTUAL_NODES; v++) {
+                        long point = mix(base | v);
+                        unsorted[i * VIRTUAL_NODES + v] = point;
+                        ownerOf.put(point, subscribers[i]);
+                    }
+                }
+                Arrays.sort(unsorted);
+                this.points = unsorted;
+                this.owners = new MicroService[size];
+                for (int i = 0; i < size; i++) {
+                    owners[i] = ownerOf.get(unsorted[i]);
+                }
+            }
+
+            /**
+             * @return the subscriber owning the first point at or after {@code hash}.
+             */
+            MicroService owner(long hash) {
+                int index = Arrays.binarySearch(points, hash);
+                if (index < 0) {
+                    index = -index - 1;
+                }
+                return owners[index == points.length ? 0 : index];
+            }
+        }
+
+        // 64-bit finalizer of MurmurHash3, spreads close values all over the ring
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package bgu.spl.mics;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * Chooses which subscriber of an {@link Event} type receives a sent event.
+ * <p>
+ * A strategy is set per event type on the {@link MessageBusImpl} and is called
+ * concurrently by all the senders of that type, so implementations must be
+ * thread-safe. See {@link RoutingStrategies} for the available strategies.
+ */
+public interface RoutingStrategy {
+
+    /**
+     * @param e           The event being sent.
+     * @param subscribers The current subscribers of {@code e}'s type, never empty.
+     *                    Must not be modified.
+     * @param load        Gives the number of messages waiting in a subscriber's mailbox.
+     * @return one of {@code subscribers}.
+     */
+    MicroService select(Event<?> e, MicroService[] subscribers, ToIntFunction<MicroService> load);
+}
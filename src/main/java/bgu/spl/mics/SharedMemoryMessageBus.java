@@ -0,0 +1,354 @@
+package bgu.spl.mics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A message bus that also passes some message types to a bus in another process
+ * on the same host, through two memory-mapped ring buffers (see
+ * {@link MappedRingBuffer}): one this process writes and the peer reads, one the
+ * other way around.
+ * <p>
+ * Events of a bridged type are always handled by the peer: {@link #sendEvent}
+ * writes them to the peer and returns a future that is resolved when the peer's
+ * handler completes them, or expired if the peer dropped them past their deadline
+ * (see {@link ExpiringEvent}) or did not answer within the future expiry time (see
+ * {@link #setFutureExpiry}). An event the peer has no receiver for, or drops
+ * without handling it, is resolved with null. Broadcasts of a bridged type reach
+ * the subscribers of both processes. Other types stay local, as on
+ * {@link MessageBusImpl}.
+ * <p>
+ * Both processes create the bus with the same directory, their own name as
+ * {@code self} and the other's as {@code peer}, and bridge the same types.
+ * Messages and results are turned into bytes by a {@link MessageCodec}.
+ */
+public class SharedMemoryMessageBus extends MessageBusImpl implements Closeable {
+
+    /** The capacity of each ring buffer when none is given. */
+    public static final int DEFAULT_RING_CAPACITY = 1 << 20;
+
+    private static final byte EVENT = 1;
+    private static final byte BROADCAST = 2;
+    private static final byte RESULT = 3;
+    private static final byte NO_RECEIVER = 4;
+    private static final byte EXPIRED = 5;
+
+    private static final int IDLE_SPINS = 100;
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final MessageCodec codec;
+    private final Set<Class<? extends Message>> bridged;
+    private final MappedRingBuffer outbound;
+    private final MappedRingBuffer inbound;
+    private final Map<Long, Pending> pending; // events sent to the peer, by correlation id
+    private final AtomicLong correlationIds;
+    private final Thread reader;
+    private volatile long pendingExpiryNanos;
+    private volatile boolean closed;
+
+    /**
+     * Same as {@link #SharedMemoryMessageBus(Path, String, String, MessageCodec, Collection, int)}
+     * with rings of {@link #DEFAULT_RING_CAPACITY} bytes.
+     */
+    public SharedMemoryMessageBus(Path directory, String self, String peer, MessageCodec codec,
+                                  Collection<Class<? extends Message>> bridgedTypes) throws IOException {
+        this(directory, self, peer, codec, bridgedTypes, DEFAULT_RING_CAPACITY);
+    }
+
+    /**
+     * Maps the ring buffers shared with {@code peer} and starts reading what it sends.
+     * <p>
+     * @param directory    where the ring buffer files are, /dev/shm keeps them in memory.
+     * @param self         the name of this process.
+     * @param peer         the name of the other process.
+     * @param codec        turns the bridged messages and their results into bytes.
+     * @param bridgedTypes the message types passed to the peer.
+     * @param ringCapacity the size of each ring buffer in bytes, a power of two.
+     * @throws IllegalArgumentException if {@code codec} does not support one of the
+     *                                  bridged types, or one of them is a {@link ControlMessage}.
+     * @throws IOException              if a ring buffer cannot be mapped.
+     */
+    public SharedMemoryMessageBus(Path directory, String self, String peer, MessageCodec codec,
+                                  Collection<Class<? extends Message>> bridgedTypes, int ringCapacity) throws IOException {
+        for (Class<? extends Message> type : bridgedTypes) {
+            if (!codec.supports(type)) {
+                throw new IllegalArgumentException("The codec cannot write " + type.getName());
+            }
+            if (ControlMessage.class.isAssignableFrom(type)) {
+                throw new IllegalArgumentException("Control messages stay in their process: " + type.getName());
+            }
+        }
+        this.codec = codec;
+        this.bridged = new HashSet<>(bridgedTypes);
+        this.pending = new ConcurrentHashMap<>();
+        this.correlationIds = new AtomicLong(0);
+        this.pendingExpiryNanos = FutureRegistry.DEFAULT_EXPIRY_NANOS;
+        this.outbound = MappedRingBuffer.open(directory.resolve(self + "-to-" + peer + ".ring"), ringCapacity);
+        try {
+            this.inbound = MappedRingBuffer.open(directory.resolve(peer + "-to-" + self + ".ring"), ringCapacity);
+        } catch (IOException | RuntimeException e) {
+            outbound.close();
+            throw e;
+        }
+        this.reader = new Thread(this::readLoop, "shared-memory-bus-" + self);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends events of a bridged type to the peer, waiting while the outbound ring
+     * is full; other events are sent as on {@link MessageBusImpl}.
+     * <p>
+     * @return the future of the event, resolved with null if the peer has no
+     *         subscriber for it or this bus is closed first, and expired if the
+     *         peer did not answer within the future expiry time.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Future<T> sendEvent(Event<T> e) {
+        if (!bridged.contains(e.getClass())) {
+            return super.sendEvent(e);
+        }
+        long id = correlationIds.incrementAndGet();
+        Future<T> future = new Future<>();
+        pending.put(id, new Pending((Future<Object>) future, System.nanoTime()));
+        if (!write(EVENT, id, e, null)) {
+            pending.remove(id);
+            future.resolve(null);
+        }
+        return future;
+    }
+
+    /**
+     * Sends a batch that holds events of a bridged type one event at a time, so
+     * those reach the peer; other batches are sent as on {@link MessageBusImpl}.
+     */
+    @Override
+    public <T> Future<List<T>> sendEvents(List<? extends Event<T>> events, List<Future<T>> into) {
+        boolean anyBridged = false;
+        for (int i = 0; i < events.size() && !anyBridged; i++) {
+            anyBridged = bridged.contains(events.get(i).getClass());
+        }
+        if (!anyBridged) {
+            return super.sendEvents(events, into);
+        }
+        List<Future<T>> futures = new ArrayList<>(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            Future<T> future = sendEvent(events.get(i));
+            if (into != null) {
+                into.add(future);
+            }
+            if (future == null) {
+                future = new Future<>();
+                future.resolve(null);
+            }
+            futures.add(future);
+        }
+        return Future.allOf(futures);
+    }
+
+    /**
+     * Delivers {@code b} to the subscribers of this process and, for a bridged
+     * type, of the peer.
+     */
+    @Override
+    public void sendBroadcast(Broadcast b) {
+        super.sendBroadcast(b);
+        if (bridged.contains(b.getClass())) {
+            write(BROADCAST, 0, b, null);
+        }
+    }
+
+    /**
+     * Also sets how long an event sent to the peer may wait for its answer before
+     * its future is expired.
+     */
+    @Override
+    public void setFutureExpiry(long timeout, TimeUnit unit) {
+        super.setFutureExpiry(timeout, unit);
+        pendingExpiryNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Stops reading from the peer and unmaps the ring buffers. The futures of events
+     * still waiting for the peer are resolved with null.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(reader);
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Long id : pending.keySet()) {
+            Pending waiting = pending.remove(id);
+            if (waiting != null) {
+                waiting.future.resolve(null);
+            }
+        }
+        try {
+            outbound.close();
+        } finally {
+            inbound.close();
+        }
+    }
+
+    /**
+     * Writes one frame, the kind, the correlation id and the message or result,
+     * waiting for room in the outbound ring.
+     * <p>
+     * @return false if the bus was closed before the frame was written.
+     */
+    private boolean write(byte kind, long id, Message message, Object result) {
+        byte[] frame;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(kind);
+            out.writeLong(id);
+            if (kind == RESULT) {
+                codec.writeResult(result, out);
+            } else if (kind == EVENT || kind == BROADCAST) {
+                codec.writeMessage(message, out);
+            }
+            out.flush();
+            frame = bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not write a frame to the peer", ex);
+        }
+        int idle = 0;
+        while (!outbound.offer(frame, frame.length)) {
+            if (closed) {
+                return false;
+            }
+            idle = backOff(idle);
+        }
+        return true;
+    }
+
+    private void readLoop() {
+        int idle = 0;
+        long lastSweep = System.nanoTime();
+        while (!closed) {
+            long now = System.nanoTime();
+            if (now - lastSweep >= SWEEP_INTERVAL_NANOS) {
+                expirePending(now);
+                lastSweep = now;
+            }
+            byte[] frame = inbound.poll();
+            if (frame == null) {
+                idle = backOff(idle);
+                continue;
+            }
+            idle = 0;
+            try {
+                handle(new DataInputStream(new ByteArrayInputStream(frame)));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Dropped a frame from the peer: " + e);
+            }
+        }
+    }
+
+    private void handle(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        long id = in.readLong();
+        switch (kind) {
+            case EVENT: {
+                // sent as a batch of one, whose future is also resolved when the event is
+                // dropped, left in a mailbox or skipped, so the sender always gets an answer
+                List<Future<Object>> into = new ArrayList<>(1);
+                @SuppressWarnings("unchecked")
+                Event<Object> event = (Event<Object>) codec.readMessage(in);
+                super.sendEvents(Collections.singletonList(event), into).onComplete(results -> {
+                    Future<Object> future = into.get(0);
+                    if (future != null && future.isExpired()) {
+                        write(EXPIRED, id, null, null);
+                    } else if (future != null && future.isDone()) {
+                        write(RESULT, id, null, future.get());
+                    } else {
+                        write(NO_RECEIVER, id, null, null); // no receiver, or dropped unhandled
+                    }
+                });
+                break;
+            }
+            case BROADCAST:
+                super.sendBroadcast((Broadcast) codec.readMessage(in)); // not sent back to the peer
+                break;
+            case RESULT:
+            case NO_RECEIVER: {
+                Object result = kind == RESULT ? codec.readResult(in) : null;
+                Pending waiting = pending.remove(id);
+                if (waiting != null) {
+                    waiting.future.resolve(result);
+                }
+                break;
+            }
+            case EXPIRED: {
+                Pending waiting = pending.remove(id);
+                if (waiting != null) {
+                    waiting.future.expire();
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown frame kind: " + kind);
+        }
+    }
+
+    /**
+     * Expires the futures of the events the peer did not answer within the expiry time.
+     */
+    private void expirePending(long now) {
+        long expiry = pendingExpiryNanos;
+        for (Map.Entry<Long, Pending> entry : pending.entrySet()) {
+            Pending waiting = entry.getValue();
+            // only expire what an answer read meanwhile did not take first
+            if (now - waiting.sentAt > expiry && pending.remove(entry.getKey(), waiting)) {
+                waiting.future.expire();
+            }
+        }
+    }
+
+    /**
+     * Spins for a while, then parks for longer and longer, up to a millisecond.
+     * <p>
+     * @return the number of times in a row nothing was there.
+     */
+    private static int backOff(int idle) {
+        if (idle < IDLE_SPINS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.min(MAX_IDLE_PARK_NANOS, 1000L << Math.min(idle - IDLE_SPINS, 10)));
+        }
+        return idle + 1;
+    }
+
+    private static final class Pending {
+        private final Future<Object> future;
+        private final long sentAt;
+
+        Pending(Future<Object> future, long sentAt) {
+            this.future = future;
+            this.sentAt = sentAt;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package bgu.spl.mics.application;
+
+/**
+ * How the {@link bgu.spl.mics.application.services.TimeService} paces the ticks.
+ */
+public enum ClockMode {
+    /** One tick every TickTime seconds of wall time, as configured. */
+    REALTIME,
+    /**
+     * As fast as possible: the next tick is sent as soon as every service handled
+     * the current one, and everything that caused in turn. The ticks and the output
+     * are the same as in real time, without the waiting.
+     */
+    AFAP;
+
+    /**
+     * @param name a mode name as given on the command line, "realtime" or "afap".
+     * @return the matching mode.
+     * @throws IllegalArgumentException if there is no such mode.
+     */
+    public static ClockMode forName(String name) {
+        for (ClockMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown clock mode: " + name);
+    }
+}
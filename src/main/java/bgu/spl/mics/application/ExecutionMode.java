@@ -0,0 +1,99 @@
+package bgu.spl.mics.application;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * How the runner gives each {@link bgu.spl.mics.MicroService} a thread.
+ */
+public enum ExecutionMode {
+    /** One platform (OS) thread per micro-service. */
+    PLATFORM {
+        @Override
+        Thread newThread(Runnable task, String name) {
+            return new Thread(task, name);
+        }
+    },
+    /**
+     * One virtual thread per micro-service, so a simulation can run many thousands of
+     * sensors. Needs a Java 21 runtime; on older runtimes platform threads are used.
+     */
+    VIRTUAL {
+        @Override
+        Thread newThread(Runnable task, String name) {
+            if (OF_VIRTUAL == null) {
+                return PLATFORM.newThread(task, name);
+            }
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Could not create a virtual thread for " + name, e);
+            }
+        }
+    },
+    /**
+     * Micro-services share a pool of worker threads, one per core, and are run
+     * only when they have messages (see {@link bgu.spl.mics.ActorScheduler}).
+     * Services that block inside their callbacks still get a platform thread.
+     */
+    ACTOR {
+        @Override
+        Thread newThread(Runnable task, String name) {
+            return PLATFORM.newThread(task, name);
+        }
+    };
+
+    // Thread.ofVirtual() and its builder, looked up at runtime so the sources stay Java 8
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_UNSTARTED = unstarted;
+    }
+
+    /**
+     * @param task the micro-service to run.
+     * @param name the name of the thread.
+     * @return a new thread, not started yet, that runs {@code task}, for the
+     *         micro-services this mode runs on threads of their own.
+     */
+    abstract Thread newThread(Runnable task, String name);
+
+    /**
+     * @return true if this mode runs its threads as requested on the current
+     *         runtime, false if it falls back to platform threads.
+     */
+    boolean isSupported() {
+        return this != VIRTUAL || OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param name a mode name as given on the command line, "platform", "virtual"
+     *             or "actor".
+     * @return the matching mode.
+     * @throws IllegalArgumentException if there is no such mode.
+     */
+    static ExecutionMode forName(String name) {
+        for (ExecutionMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown thread mode: " + name);
+    }
+}
@@ -1,13 +1,20 @@
 package bgu.spl.mics.application;
 
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.RoutingStrategies;
+import bgu.spl.mics.application.messages.DetectObjectsEvent;
+import bgu.spl.mics.application.messages.TickBroadcast;
 import bgu.spl.mics.application.objects.*;
 import bgu.spl.mics.application.services.*;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 
 import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.util.Map;
 import java.util.LinkedHashMap;
 import java.nio.file.Path;
@@ -15,17 +22,67 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class GurionRockRunner {
+    private static final int TICK_CHANNEL_CAPACITY = 1024;
+    private static final String THREADS_OPTION = "--threads=";
+    private static final String CLOCK_OPTION = "--clock=";
+    private static final String METRICS_FILE = "bus_metrics.json";
+    private static final String TRACE_FILE = "latency_trace.json";
+    private static final String TICK_JITTER_FILE = "tick_jitter.json";
+
     public static void main(String[] args) {
-        if (args.length < 1) {
+        List<String> configFilePaths = new ArrayList<>();
+        ExecutionMode mode = ExecutionMode.PLATFORM;
+        ClockMode clockMode = ClockMode.REALTIME;
+        for (String arg : args) {
+            if (arg.startsWith(THREADS_OPTION)) {
+                mode = ExecutionMode.forName(arg.substring(THREADS_OPTION.length()));
+            } else if (arg.startsWith(CLOCK_OPTION)) {
+                clockMode = ClockMode.forName(arg.substring(CLOCK_OPTION.length()));
+            } else {
+                configFilePaths.add(arg);
+            }
+        }
+        if (configFilePaths.isEmpty()) {
             System.err.println("Error: Configuration file path is required as the first argument.");
             return;
         }
-        String configFilePath = args[0];
-        System.out.println("Starting GurionRock Simulation...");
+        if (!mode.isSupported()) {
+            System.err.println("Warning: virtual threads need Java 21 or later, using platform threads.");
+        }
+        if (configFilePaths.size() == 1) {
+            runSimulation(configFilePaths.get(0), mode, clockMode);
+            return;
+        }
+
+        // Several configurations: each runs in a context of its own, all at once
+        List<Thread> simulations = new ArrayList<>();
+        for (String configFilePath : configFilePaths) {
+            ExecutionMode simulationMode = mode;
+            ClockMode simulationClock = clockMode;
+            Thread simulation = new Thread(() -> runSimulation(configFilePath, simulationMode, simulationClock),
+                    "simulation " + configFilePath);
+            simulations.add(simulation);
+            simulation.start();
+        }
+        for (Thread simulation : simulations) {
+            try {
+                simulation.join();
+            } catch (InterruptedException e) {
+                System.err.println("Interrupted while waiting for " + simulation.getName());
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void runSimulation(String configFilePath, ExecutionMode mode, ClockMode clockMode) {
+        System.out.println("Starting GurionRock Simulation: " + configFilePath);
 
-        List<Thread> threads = new ArrayList<>();
+        SimulationContext context = new SimulationContext();
+        ServiceExecutor executor = new ServiceExecutor(mode);
         try {
             Path configPath = Paths.get(configFilePath);
             Path directoryPath = configPath.getParent();
@@ -34,27 +91,30 @@ public class GurionRockRunner {
             JsonObject config = parseConfiguration(configFilePath);
 
             // Initialize components
-            SystemComponents components = initializeComponents(config, directoryPath.toString());
+            SystemComponents components = initializeComponents(config, directoryPath.toString(), context, clockMode);
 
             // Initialize and start services
-            initializeServices(components, threads);
+            initializeServices(components, context, executor);
 
-            // Wait for threads to complete
-            waitForThreads(threads);
+            // Wait for services to complete
+            executor.awaitAll();
 
             // Write output JSON
-            if (!StatisticalFolder.getInstance().isError()) {
-                FusionSlam.getInstance().writeToJson(directoryPath + "/output_file.json");
-                System.out.println("Simulation completed successfully.");
+            if (!context.getStatisticalFolder().isError()) {
+                context.getFusionSlam().writeToJson(directoryPath + "/output_file.json");
+                System.out.println("Simulation completed successfully: " + configFilePath);
             }
             else {
-                handleError(directoryPath + "/outputError.json", components);
-                System.out.println("Simulation ended with error.");
+                handleError(directoryPath + "/outputError.json", components, context);
+                System.out.println("Simulation ended with error: " + configFilePath);
             }
+            writeBusMetrics(directoryPath + "/" + METRICS_FILE, context.getMessageBus());
+            context.getLatencyTracer().writeToJson(directoryPath + "/" + TRACE_FILE);
+            writeTickJitter(directoryPath + "/" + TICK_JITTER_FILE, context.getStatisticalFolder());
 
         } catch (Exception e) {
             System.out.println(e.getMessage());
-            handleError(e, configFilePath);
+            handleError(e, configFilePath, context);
         }
     }
 
@@ -65,7 +125,8 @@ public class GurionRockRunner {
         }
     }
 
-    private static SystemComponents initializeComponents(JsonObject config, String directoryPath) {
+    private static SystemComponents initializeComponents(JsonObject config, String directoryPath, SimulationContext context,
+                                                         ClockMode clockMode) {
         SystemComponents components = new SystemComponents();
 
         // Initialize Cameras
@@ -83,7 +144,7 @@ public class GurionRockRunner {
         }
 
         // Initialize LiDAR DataBase
-        components.lidarDataBase = LiDarDataBase.getInstance();
+        components.lidarDataBase = context.getLiDarDataBase();
         String lidarDataPath = config.getAsJsonObject("LiDarWorkers").get("lidars_data_path").getAsString();
         components.lidarDataBase.loadFromJson(directoryPath + "/" + lidarDataPath);
 
@@ -93,80 +154,108 @@ public class GurionRockRunner {
         components.gpsIMU.readFromJson(directoryPath + "/" + gpsImuPath);
 
         // Initialize LiDarWorkers
-        JsonArray lidarWorkersArray = config.getAsJsonObject("LiDarWorkers").getAsJsonArray("LidarConfigurations");
+        JsonObject lidarWorkersJson = config.getAsJsonObject("LiDarWorkers");
+        if (lidarWorkersJson.has("routing")) {
+            components.detectionRouting = lidarWorkersJson.get("routing").getAsString();
+        }
+        JsonArray lidarWorkersArray = lidarWorkersJson.getAsJsonArray("LidarConfigurations");
         for (JsonElement lidarElement : lidarWorkersArray) {
             JsonObject lidarConfig = lidarElement.getAsJsonObject();
             int id = lidarConfig.get("id").getAsInt();
             int frequency = lidarConfig.get("frequency").getAsInt();
 
-            LiDarWorkerTracker lidarWorker = new LiDarWorkerTracker(id, frequency);
+            LiDarWorkerTracker lidarWorker = new LiDarWorkerTracker(id, frequency, components.lidarDataBase);
             components.lidarWorkers.add(lidarWorker);
         }
 
         // Initialize other components
-        components.fusionSlam = FusionSlam.getInstance();
-        components.timeService = new TimeService(config.get("TickTime").getAsInt(), config.get("Duration").getAsInt());
-        components.poseService = new PoseService(components.gpsIMU);
-        components.fusionSlamService = new FusionSlamService(components.fusionSlam);
+        components.fusionSlam = context.getFusionSlam();
+        MissedTickPolicy missedTickPolicy = config.has("MissedTicks")
+                ? MissedTickPolicy.forName(config.get("MissedTicks").getAsString()) : MissedTickPolicy.CATCH_UP;
+        components.timeService = new TimeService(tickNanos(config), config.get("Duration").getAsInt(), context,
+                clockMode, missedTickPolicy);
+        components.poseService = new PoseService(components.gpsIMU, context);
+        components.fusionSlamService = new FusionSlamService(context);
 
         return components;
     }
 
-    private static void initializeServices(SystemComponents components, List<Thread> threads) {
+    private static void initializeServices(SystemComponents components, SimulationContext context, ServiceExecutor executor) {
+        // Every service listens to ticks, fan them out with one write per tick
+        context.getMessageBus().enableBroadcastChannel(TickBroadcast.class, TICK_CHANNEL_CAPACITY);
+        if (components.detectionRouting != null) {
+            context.getMessageBus().setRoutingStrategy(DetectObjectsEvent.class, RoutingStrategies.forName(components.detectionRouting));
+        }
+
         for (Camera camera : components.cameras) {
-            Thread cameraThread = new Thread(new CameraService(camera));
-            threads.add(cameraThread);
-            cameraThread.start();
+            executor.start(new CameraService(camera, context));
         }
 
         for (LiDarWorkerTracker lidarWorker : components.lidarWorkers) {
-            Thread lidarThread = new Thread(new LiDarService(lidarWorker));
-            threads.add(lidarThread);
-            lidarThread.start();
+            executor.start(new LiDarService(lidarWorker, context));
         }
 
+        executor.start(components.poseService);
+        executor.start(components.fusionSlamService);
+        try {
+            executor.awaitReady(context.getMessageBus()); // every service subscribed before the first tick
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.startDedicated(components.timeService);
+    }
 
-        Thread poseThread = new Thread(components.poseService);
-        Thread timeThread = new Thread(components.timeService);
-        Thread fusionThread = new Thread(components.fusionSlamService);
-
-        threads.add(poseThread);
-        threads.add(timeThread);
-        threads.add(fusionThread);
+    /**
+     * @return the tick length, "TickTime" in the "TickTimeUnit" of the configuration:
+     *         "s" (the default), "ms" or "us" (also "\u00b5s").
+     */
+    private static long tickNanos(JsonObject config) {
+        long tickTime = config.get("TickTime").getAsLong();
+        String unit = config.has("TickTimeUnit") ? config.get("TickTimeUnit").getAsString() : "s";
+        switch (unit) {
+            case "s":
+                return TimeUnit.SECONDS.toNanos(tickTime);
+            case "ms":
+                return TimeUnit.MILLISECONDS.toNanos(tickTime);
+            case "us":
+            case "\u00b5s":
+                return TimeUnit.MICROSECONDS.toNanos(tickTime);
+            default:
+                throw new IllegalArgumentException("Unknown TickTimeUnit: " + unit);
+        }
+    }
 
-        poseThread.start();
-        fusionThread.start();
-        try {
-            Thread.sleep(1000); // Sleep for 1 second before starting the time service
+    private static void writeTickJitter(String outputPath, StatisticalFolder statisticalFolder) {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        try (FileWriter writer = new FileWriter(outputPath)) {
+            gson.toJson(statisticalFolder.getTickJitter(), writer);
+        } catch (IOException e) {
+            System.err.println("Could not write the tick jitter: " + e.getMessage());
         }
-        catch (InterruptedException e) {}
-        timeThread.start();
     }
 
-    private static void waitForThreads(List<Thread> threads) {
-        for (Thread thread : threads) {
-            try {
-                thread.join();
-            } catch (InterruptedException e) {
-                System.err.println("Thread interrupted: " + thread.getName());
-                Thread.currentThread().interrupt();
-            }
+    private static void writeBusMetrics(String outputPath, MessageBusImpl messageBus) {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        try (FileWriter writer = new FileWriter(outputPath)) {
+            gson.toJson(messageBus.getMetrics(), writer);
+        } catch (IOException e) {
+            System.err.println("Could not write the bus metrics: " + e.getMessage());
         }
     }
 
-    private static void handleError(Exception e, String configFilePath) {
+    private static void handleError(Exception e, String configFilePath, SimulationContext context) {
         System.err.println("Error during simulation setup: " + e.getMessage());
         e.printStackTrace();
 
-        FusionSlam fusionSlam = FusionSlam.getInstance();
+        FusionSlam fusionSlam = context.getFusionSlam();
         Path outputPath = Paths.get(configFilePath).getParent().resolve("output_file.json");
         fusionSlam.writeToJson(outputPath.toString());
     }
 
-    private static void handleError(String outputPath, SystemComponents components) {
+    private static void handleError(String outputPath, SystemComponents components, SimulationContext context) {
         System.err.println("Error during simulation setup: "); 
 
-        FusionSlam fusionSlam = FusionSlam.getInstance();
+        FusionSlam fusionSlam = context.getFusionSlam();
 
         // Collect last frames from sensors
         Map<String, List<StampedDetectedObjects>> lastCamerasFrames = collectCameraFrames(components.cameras);
@@ -195,6 +284,7 @@ public class GurionRockRunner {
 class SystemComponents {
     List<Camera> cameras = new ArrayList<>();
     List<LiDarWorkerTracker> lidarWorkers = new ArrayList<>();
+    String detectionRouting; // how DetectObjectsEvents are spread between the LiDAR workers, null for round-robin
     LiDarDataBase lidarDataBase;
     GPSIMU gpsIMU;
     FusionSlam fusionSlam;
@@ -0,0 +1,34 @@
+package bgu.spl.mics.application;
+
+/**
+ * What the {@link bgu.spl.mics.application.services.TimeService} does in real
+ * time when a tick could not be sent on its deadline, because the services took
+ * longer than a tick to handle the previous one. Ticks are never left out, only
+ * their deadlines are moved.
+ */
+public enum MissedTickPolicy {
+    /**
+     * Keeps the schedule: the late ticks are sent back to back until one is on
+     * time again, so the average rate stays the configured one.
+     */
+    CATCH_UP,
+    /**
+     * Drops the deadlines that passed: the next tick waits for the next deadline of
+     * the schedule that is still ahead, so ticks are never sent in a burst.
+     */
+    SKIP;
+
+    /**
+     * @param name a policy name as given in the configuration, "catch-up" or "skip".
+     * @return the matching policy.
+     * @throws IllegalArgumentException if there is no such policy.
+     */
+    public static MissedTickPolicy forName(String name) {
+        for (MissedTickPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name.replace('-', '_'))) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown missed tick policy: " + name);
+    }
+}
@@ -0,0 +1,86 @@
+package bgu.spl.mics.application;
+
+import bgu.spl.mics.ActorScheduler;
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MicroService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts the simulation's micro-services the way an {@link ExecutionMode} says
+ * and waits for all of them to finish.
+ */
+class ServiceExecutor {
+    // messages an actor handles before giving its worker to another service
+    private static final int ACTOR_BATCH_SIZE = 16;
+
+    private final ExecutionMode mode;
+    private final List<Thread> threads;
+    private final ActorScheduler scheduler; // null unless the mode is ACTOR
+    private int started; // services started on threads or on the scheduler
+
+    ServiceExecutor(ExecutionMode mode) {
+        this.mode = mode;
+        this.threads = new ArrayList<>();
+        this.scheduler = mode == ExecutionMode.ACTOR
+                ? new ActorScheduler(Runtime.getRuntime().availableProcessors(), ACTOR_BATCH_SIZE)
+                : null;
+    }
+
+    /**
+     * Starts {@code service} on a thread or on the shared workers, by the mode.
+     */
+    void start(MicroService service) {
+        if (scheduler != null) {
+            started++;
+            scheduler.start(service);
+        } else {
+            startDedicated(service);
+        }
+    }
+
+    /**
+     * Starts {@code service} on a thread of its own whatever the mode is, for
+     * services that block inside their callbacks (the TimeService sleeps between ticks).
+     */
+    void startDedicated(MicroService service) {
+        started++;
+        Thread thread = mode.newThread(service, service.getName());
+        threads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Waits until every service started so far on {@code bus} is done with its
+     * initialization, and so subscribed to the messages it handles.
+     * <p>
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void awaitReady(MessageBusImpl bus) throws InterruptedException {
+        bus.awaitReady(started);
+    }
+
+    /**
+     * Waits until every started service has terminated.
+     */
+    void awaitAll() {
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                System.err.println("Thread interrupted: " + thread.getName());
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (scheduler != null) {
+            try {
+                scheduler.awaitTermination();
+            } catch (InterruptedException e) {
+                System.err.println("Interrupted while waiting for the services to terminate.");
+                Thread.currentThread().interrupt();
+            }
+            scheduler.shutdown();
+        }
+    }
+}
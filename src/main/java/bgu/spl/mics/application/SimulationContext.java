@@ -0,0 +1,61 @@
+package bgu.spl.mics.application;
+
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.application.objects.FusionSlam;
+import bgu.spl.mics.application.objects.LatencyTracer;
+import bgu.spl.mics.application.objects.LiDarDataBase;
+import bgu.spl.mics.application.objects.SensorMonitor;
+import bgu.spl.mics.application.objects.StatisticalFolder;
+
+/**
+ * Everything one simulation shares between its micro-services: the message bus
+ * and the state objects that are otherwise singletons.
+ * <p>
+ * Services are given the context they run in, so simulations with contexts of
+ * their own do not see each other's messages, landmarks or statistics, and
+ * several of them can run at once in one JVM.
+ */
+public class SimulationContext {
+    private final MessageBusImpl messageBus;
+    private final StatisticalFolder statisticalFolder;
+    private final SensorMonitor sensorMonitor;
+    private final LiDarDataBase liDarDataBase;
+    private final LatencyTracer latencyTracer;
+    private final FusionSlam fusionSlam;
+
+    /**
+     * Creates a context with a new bus and new, empty state objects.
+     */
+    public SimulationContext() {
+        this.messageBus = new MessageBusImpl();
+        this.statisticalFolder = new StatisticalFolder();
+        this.sensorMonitor = new SensorMonitor();
+        this.liDarDataBase = new LiDarDataBase();
+        this.latencyTracer = new LatencyTracer();
+        this.fusionSlam = new FusionSlam(statisticalFolder, latencyTracer);
+    }
+
+    public MessageBusImpl getMessageBus() {
+        return messageBus;
+    }
+
+    public StatisticalFolder getStatisticalFolder() {
+        return statisticalFolder;
+    }
+
+    public SensorMonitor getSensorMonitor() {
+        return sensorMonitor;
+    }
+
+    public LiDarDataBase getLiDarDataBase() {
+        return liDarDataBase;
+    }
+
+    public LatencyTracer getLatencyTracer() {
+        return latencyTracer;
+    }
+
+    public FusionSlam getFusionSlam() {
+        return fusionSlam;
+    }
+}
@@ -0,0 +1,168 @@
+package bgu.spl.mics.application.messages;
+
+import bgu.spl.mics.Message;
+import bgu.spl.mics.MessageCodec;
+import bgu.spl.mics.application.objects.CloudPoint;
+import bgu.spl.mics.application.objects.DetectedObject;
+import bgu.spl.mics.application.objects.Pose;
+import bgu.spl.mics.application.objects.TrackedObject;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the simulation messages as a type tag followed by their fields, with no
+ * reflection, so they can cross to another process through a
+ * {@link bgu.spl.mics.SharedMemoryMessageBus}.
+ * Crash and termination broadcasts are not bridged: each process ends its own
+ * simulation. A detection keeps its deadline tick, which the receiving process
+ * checks against its own bus clock.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+    private static final byte TICK = 1;
+    private static final byte DETECT_OBJECTS = 2;
+    private static final byte TRACKED_OBJECTS = 3;
+    private static final byte POSE = 4;
+
+    private static final byte NO_RESULT = 0;
+    private static final byte BOOLEAN_RESULT = 1;
+    private static final byte POSE_RESULT = 2;
+
+    @Override
+    public boolean supports(Class<? extends Message> type) {
+        return type == TickBroadcast.class || type == DetectObjectsEvent.class
+                || type == TrackedObjectsEvent.class || type == PoseEvent.class;
+    }
+
+    @Override
+    public void writeMessage(Message message, DataOutput out) throws IOException {
+        if (message instanceof TickBroadcast) {
+            TickBroadcast tick = (TickBroadcast) message;
+            out.writeByte(TICK);
+            out.writeInt(tick.getFirstTick());
+            out.writeInt(tick.getTick());
+        } else if (message instanceof DetectObjectsEvent) {
+            DetectObjectsEvent event = (DetectObjectsEvent) message;
+            List<DetectedObject> objects = event.getDetectedObjects();
+            out.writeByte(DETECT_OBJECTS);
+            out.writeInt(event.getTick());
+            out.writeInt(event.getDeadlineTick());
+            out.writeInt(objects.size());
+            for (int i = 0; i < objects.size(); i++) {
+                out.writeUTF(objects.get(i).getId());
+                out.writeUTF(objects.get(i).getDescription());
+            }
+        } else if (message instanceof TrackedObjectsEvent) {
+            List<TrackedObject> objects = ((TrackedObjectsEvent) message).getTrackedObjects();
+            out.writeByte(TRACKED_OBJECTS);
+            out.writeInt(objects.size());
+            for (int i = 0; i < objects.size(); i++) {
+                TrackedObject object = objects.get(i);
+                out.writeUTF(object.getId());
+                out.writeInt(object.getTime());
+                out.writeUTF(object.getDescription());
+                List<CloudPoint> points = object.getCoordinates();
+                out.writeInt(points.size());
+                for (int j = 0; j < points.size(); j++) {
+                    out.writeDouble(points.get(j).getX());
+                    out.writeDouble(points.get(j).getY());
+                }
+            }
+        } else if (message instanceof PoseEvent) {
+            out.writeByte(POSE);
+            writePose(((PoseEvent) message).getPose(), out);
+        } else {
+            throw new IllegalArgumentException("Unsupported message type: " + message.getClass().getName());
+        }
+    }
+
+    @Override
+    public Message readMessage(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TICK: {
+                int firstTick = in.readInt();
+                return new TickBroadcast(firstTick, in.readInt());
+            }
+            case DETECT_OBJECTS: {
+                int tick = in.readInt();
+                int deadlineTick = in.readInt();
+                int count = in.readInt();
+                List<DetectedObject> objects = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String id = in.readUTF();
+                    objects.add(new DetectedObject(id, in.readUTF()));
+                }
+                return new DetectObjectsEvent(objects, tick, deadlineTick);
+            }
+            case TRACKED_OBJECTS: {
+                int count = in.readInt();
+                List<TrackedObject> objects = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String id = in.readUTF();
+                    int time = in.readInt();
+                    String description = in.readUTF();
+                    int pointCount = in.readInt();
+                    List<CloudPoint> points = new ArrayList<>(pointCount);
+                    for (int j = 0; j < pointCount; j++) {
+                        double x = in.readDouble();
+                        points.add(new CloudPoint(x, in.readDouble()));
+                    }
+                    objects.add(new TrackedObject(id, time, description, points));
+                }
+                return new TrackedObjectsEvent(objects);
+            }
+            case POSE:
+                return new PoseEvent(readPose(in));
+            default:
+                throw new IOException("Unknown message tag: " + tag);
+        }
+    }
+
+    @Override
+    public void writeResult(Object result, DataOutput out) throws IOException {
+        if (result == null) {
+            out.writeByte(NO_RESULT);
+        } else if (result instanceof Boolean) {
+            out.writeByte(BOOLEAN_RESULT);
+            out.writeBoolean((Boolean) result);
+        } else if (result instanceof Pose) {
+            out.writeByte(POSE_RESULT);
+            writePose((Pose) result, out);
+        } else {
+            throw new IllegalArgumentException("Unsupported result type: " + result.getClass().getName());
+        }
+    }
+
+    @Override
+    public Object readResult(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NO_RESULT:
+                return null;
+            case BOOLEAN_RESULT:
+                return in.readBoolean();
+            case POSE_RESULT:
+                return readPose(in);
+            default:
+                throw new IOException("Unknown result tag: " + tag);
+        }
+    }
+
+    private static void writePose(Pose pose, DataOutput out) throws IOException {
+        out.writeInt(pose.getTime());
+        out.writeDouble(pose.getX());
+        out.writeDouble(pose.getY());
+        out.writeDouble(pose.getYaw());
+    }
+
+    private static Pose readPose(DataInput in) throws IOException {
+        int time = in.readInt();
+        double x = in.readDouble();
+        double y = in.readDouble();
+        return new Pose(time, x, y, in.readDouble());
+    }
+}
@@ -1,17 +1,28 @@
 package bgu.spl.mics.application.messages;
 import java.util.List;
-import bgu.spl.mics.Event;
+import bgu.spl.mics.ExpiringEvent;
+import bgu.spl.mics.KeyedEvent;
 import bgu.spl.mics.application.objects.DetectedObject;
 import bgu.spl.mics.Future;
 
-public class DetectObjectsEvent implements Event<Boolean> {
+public class DetectObjectsEvent implements KeyedEvent<Boolean>, ExpiringEvent<Boolean> {
     private final List<DetectedObject> detectedObjects;
     private final int tick;
+    private final int deadlineTick;
     public  Future<Boolean> future;
 
     public DetectObjectsEvent(List<DetectedObject> detectedObjects, int tick) {
+        this(detectedObjects, tick, NO_DEADLINE_TICK);
+    }
+
+    /**
+     * Creates a detection that is dropped, unhandled, if it is still waiting in a
+     * LiDAR mailbox after {@code deadlineTick}.
+     */
+    public DetectObjectsEvent(List<DetectedObject> detectedObjects, int tick, int deadlineTick) {
         this.detectedObjects = detectedObjects;
         this.tick = tick;
+        this.deadlineTick = deadlineTick;
         this.future = null;
     }
     public void updateFuture(Future<Boolean> future){
@@ -26,4 +37,18 @@ public class DetectObjectsEvent implements Event<Boolean> {
     public int getTick() {
         return tick;
     } 
+
+    @Override
+    public int getDeadlineTick() {
+        return deadlineTick;
+    }
+
+    /**
+     * Detections are keyed by the id of their first object, so with key-affinity
+     * routing the same LiDAR worker keeps tracking the same object.
+     */
+    @Override
+    public Object getRoutingKey() {
+        return detectedObjects.isEmpty() ? null : detectedObjects.get(0).getId();
+    }
 }
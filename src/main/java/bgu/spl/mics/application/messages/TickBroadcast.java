@@ -1,15 +1,37 @@
 package bgu.spl.mics.application.messages;
 import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.Mergeable;
 
-public class TickBroadcast implements Broadcast {
+public class TickBroadcast implements Broadcast, Mergeable<TickBroadcast> {
+    private final int firstTick;
     private final int currentTick;
 
     public TickBroadcast(int currentTick) {
+        this(currentTick, currentTick);
+    }
+
+    /**
+     * Creates a tick standing for all the ticks from {@code firstTick} to {@code currentTick}.
+     */
+    public TickBroadcast(int firstTick, int currentTick) {
+        this.firstTick = firstTick;
         this.currentTick = currentTick;
     }
 
     public int getTick() {
         return currentTick;
     }
-}
 
+    /**
+     * @return the first tick this broadcast stands for, equals {@link #getTick()}
+     *         unless pending ticks were coalesced.
+     */
+    public int getFirstTick() {
+        return firstTick;
+    }
+
+    @Override
+    public TickBroadcast merge(TickBroadcast later) {
+        return new TickBroadcast(firstTick, later.currentTick);
+    }
+}
@@ -2,6 +2,7 @@ package bgu.spl.mics.application.objects;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
@@ -34,20 +35,23 @@ public class Camera {
         loadDetectedObjectsFromJson(jsonFilePath);
     }
 
-    public ArrayList<DetectedObject> getDetectedObjectsToSend(int tick) {
-        ArrayList<DetectedObject> detectedObjectsToSend = new ArrayList<>();
+    /**
+     * @return the objects detected at {@code tick - frequency}, or an empty list -
+     *         shared, so idle ticks allocate nothing - if there are none. The list
+     *         must not be modified.
+     */
+    public List<DetectedObject> getDetectedObjectsToSend(int tick) {
         if(status == STATUS.UP) {
-            boolean found = false;
-            for (int i = 0; i < toBeSentDetectedObjects.size() && !found; i++) {
-                if (toBeSentDetectedObjects.get(i).getTime() == tick - frequency) {
-                    detectedObjectsToSend.addAll(toBeSentDetectedObjects.get(i).getDetectedObjects());
-                    detectedObjectList.add(toBeSentDetectedObjects.get(i));
+            for (int i = 0; i < toBeSentDetectedObjects.size(); i++) {
+                StampedDetectedObjects stamped = toBeSentDetectedObjects.get(i);
+                if (stamped.getTime() == tick - frequency) {
+                    detectedObjectList.add(stamped);
                     toBeSentDetectedObjects.remove(i);
-                    found = true;
+                    return stamped.getDetectedObjects();
                 }
             }
         }
-        return detectedObjectsToSend;
+        return Collections.emptyList();
     }
 
     public int setToBeSentObjects(int tick) {
@@ -111,9 +115,12 @@ public class Camera {
     }
     
     public String checkForError(int tick) {
-        for (StampedDetectedObjects stampedObject : allObjects) {
+        for (int i = 0; i < allObjects.size(); i++) {
+            StampedDetectedObjects stampedObject = allObjects.get(i);
             if (stampedObject.getTime() == tick) {
-                for(DetectedObject object: stampedObject.getDetectedObjects()) {
+                List<DetectedObject> objects = stampedObject.getDetectedObjects();
+                for (int j = 0; j < objects.size(); j++) {
+                    DetectedObject object = objects.get(j);
                     if (object.getId().equals("ERROR")) {
                         return object.getDescription();
                     }
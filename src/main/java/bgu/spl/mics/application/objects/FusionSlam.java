@@ -25,7 +25,8 @@ import java.util.Iterator;
 /**
  * Manages the fusion of sensor data for simultaneous localization and mapping (SLAM).
  * Combines data from multiple sensors (e.g., LiDAR, camera) to build and update a global map.
- * Implements the Singleton pattern to ensure a single instance of FusionSlam exists.
+ * The singleton instance is shared by default, a
+ * {@link bgu.spl.mics.application.SimulationContext} creates one of its own.
  */
 public class FusionSlam {
     
@@ -33,28 +34,39 @@ public class FusionSlam {
     private final List<LandMark> landMarks;
     private final List<Pose> poses;      
     private final List<TrackedObject> toBeTrackedObjects; 
+    private final StatisticalFolder statisticalFolder;
+    private final LatencyTracer tracer;
 
 
     // Singleton instance holder
     private static class FusionSlamHolder { 
-        private static final FusionSlam fusionSlam = new FusionSlam();
+        private static final FusionSlam fusionSlam = new FusionSlam(StatisticalFolder.getInstance(), LatencyTracer.getInstance());
     }
 
-    private FusionSlam() {
+    /**
+     * Creates a map of its own, for a simulation that does not share the singleton.
+     *
+     * @param statisticalFolder counts the landmarks and provides the output statistics.
+     * @param tracer            records when objects reach their landmark.
+     */
+    public FusionSlam(StatisticalFolder statisticalFolder, LatencyTracer tracer) {
         this.landMarks = new ArrayList<>(); 
         this.poses = new ArrayList<>(); 
         this.toBeTrackedObjects = new ArrayList<>();
+        this.statisticalFolder = statisticalFolder;
+        this.tracer = tracer;
     }
     public synchronized void updateLandMark(TrackedObject object) {
         Pose pose = findPoseByTime(object.getTime());
         if (pose == null) {
             toBeTrackedObjects.add(object);
         } else {
+            tracer.record(LatencyTracer.Stage.LANDMARK, object.getId(), object.getTime());
             LandMark existingLandMark = findLandMarkById(object.getId());
             if (existingLandMark == null) {
                 LandMark newLandMark = new LandMark(object.getId(), object.getDescription(), transformCoordinates(object.getCoordinates(), pose));
                 landMarks.add(newLandMark);
-                StatisticalFolder.getInstance().incrementLandmarks(1);
+                statisticalFolder.incrementLandmarks(1);
             } else {
                 List<CloudPoint> updatedCoordinates = averageCoordinates(existingLandMark.getCoordinates(), transformCoordinates(object.getCoordinates(), pose));
                 existingLandMark.setCoordinates(updatedCoordinates);
@@ -118,13 +130,11 @@ public class FusionSlam {
 
     public synchronized void writeToJson(String outputPath) {
         Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        StatisticalFolder stats = StatisticalFolder.getInstance();
-
         Map<String, Object> output= new LinkedHashMap<>();
-        output.put("systemRuntime", stats.getSystemRuntime());
-        output.put("numDetectedObjects", stats.getNumDetectedObjects());
-        output.put("numTrackedObjects", stats.getNumTrackedObjects());
-        output.put("numLandmarks", stats.getNumLandmarks());
+        output.put("systemRuntime", statisticalFolder.getSystemRuntime());
+        output.put("numDetectedObjects", statisticalFolder.getNumDetectedObjects());
+        output.put("numTrackedObjects", statisticalFolder.getNumTrackedObjects());
+        output.put("numLandmarks", statisticalFolder.getNumLandmarks());
         List<String> landmarksAsStrings = landMarks.stream().map(LandMark::toString).collect(Collectors.toList()); //Made to maked output in 1 line as exemple files
         output.put("landMarks", landmarksAsStrings);
         try (FileWriter writer = new FileWriter(outputPath)) {
@@ -137,18 +147,16 @@ public class FusionSlam {
     public synchronized void writeErrorToJson(String outputPath, Map<String, List<StampedDetectedObjects>> lastCameraFrames,  Map<String, List<TrackedObject>> lastLiderFrames) {
         Gson gson = new GsonBuilder().setPrettyPrinting().create();
 
-        StatisticalFolder stats = StatisticalFolder.getInstance();
-
         Map<String, Object> statistics = new LinkedHashMap<>();
-        statistics.put("systemRuntime", stats.getSystemRuntime());
-        statistics.put("numDetectedObjects", stats.getNumDetectedObjects());
-        statistics.put("numTrackedObjects", stats.getNumTrackedObjects());
-        statistics.put("numLandmarks", stats.getNumLandmarks());
+        statistics.put("systemRuntime", statisticalFolder.getSystemRuntime());
+        statistics.put("numDetectedObjects", statisticalFolder.getNumDetectedObjects());
+        statistics.put("numTrackedObjects", statisticalFolder.getNumTrackedObjects());
+        statistics.put("numLandmarks", statisticalFolder.getNumLandmarks());
             
 
         Map<String, Object> output = new LinkedHashMap<>();
-        output.put("error", stats.getErrorDescription());
-        output.put("faultySensor", stats.getFaultySensor());
+        output.put("error", statisticalFolder.getErrorDescription());
+        output.put("faultySensor", statisticalFolder.getFaultySensor());
         output.put("lastCameraFrames", lastCameraFrames);
         output.put("lastLidarFrames", lastLiderFrames);
         output.put("poses", poses);
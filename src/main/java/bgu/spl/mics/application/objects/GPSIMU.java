@@ -33,7 +33,8 @@ public class GPSIMU {
     }
 
     public Pose getCurrentPose() {
-        for (Pose pose : poseList) {
+        for (int i = 0; i < poseList.size(); i++) {
+            Pose pose = poseList.get(i);
             if (pose.getTime() == currentTick) {
                 return pose;
             }
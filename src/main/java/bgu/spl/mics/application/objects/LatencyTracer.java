@@ -0,0 +1,272 @@
+package bgu.spl.mics.application.objects;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Traces every detected object from the camera to the landmark it updates.
+ * <p>
+ * An object is traced by its id and detection time, which both the
+ * DetectObjectsEvent and the TrackedObjectsEvent carry along. Each service stamps
+ * the stages it sees with the wall time and the tick. The report breaks the total
+ * latency into the camera delay, bus queuing, the LiDAR delay and the wait for a
+ * matching pose.
+ * The singleton instance is shared by default, a
+ * {@link bgu.spl.mics.application.SimulationContext} creates one of its own.
+ */
+public class LatencyTracer {
+
+    /**
+     * The stages of a detection on its way to a landmark, in order.
+     */
+    public enum Stage {
+        /** Camera.setToBeSentObjects picked up the detection. */
+        DETECTED,
+        /** The camera sent the DetectObjectsEvent. */
+        SENT_TO_LIDAR,
+        /** A LiDAR worker took the DetectObjectsEvent from its mailbox. */
+        LIDAR_RECEIVED,
+        /** The LiDAR worker sent the TrackedObjectsEvent. */
+        SENT_TO_FUSION,
+        /** FusionSlam took the TrackedObjectsEvent from its mailbox. */
+        FUSION_RECEIVED,
+        /** FusionSlam.updateLandMark added or updated the landmark. */
+        LANDMARK
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private static class LatencyTracerHolder {
+        private static final LatencyTracer latencyTracer = new LatencyTracer();
+    }
+
+    private final Map<String, Trace> traces;
+    private final AtomicInteger currentTick;
+
+    /**
+     * Creates a tracer of its own, for a simulation that does not share the singleton.
+     */
+    public LatencyTracer() {
+        this.traces = new ConcurrentHashMap<>();
+        this.currentTick = new AtomicInteger(0);
+    }
+
+    public static LatencyTracer getInstance() {
+        return LatencyTracerHolder.latencyTracer;
+    }
+
+    /**
+     * Records that {@code stage} was reached, at {@code tick}, by the object
+     * {@code objectId} detected at {@code detectionTime}. Only the first time a
+     * stage is reached counts.
+     */
+    public void record(Stage stage, String objectId, int detectionTime, int tick) {
+        long now = System.nanoTime();
+        traces.computeIfAbsent(objectId + "@" + detectionTime, key -> new Trace(objectId, detectionTime)).mark(stage, now, tick);
+    }
+
+    /**
+     * Same as {@link #record(Stage, String, int, int)} for every object of a detection.
+     */
+    public void record(Stage stage, List<DetectedObject> objects, int detectionTime, int tick) {
+        for (int i = 0; i < objects.size(); i++) {
+            record(stage, objects.get(i).getId(), detectionTime, tick);
+        }
+    }
+
+    /**
+     * Same as {@link #record(Stage, String, int, int)} for every tracked object.
+     */
+    public void recordTracked(Stage stage, List<TrackedObject> objects, int tick) {
+        for (int i = 0; i < objects.size(); i++) {
+            TrackedObject object = objects.get(i);
+            record(stage, object.getId(), object.getTime(), tick);
+        }
+    }
+
+    /**
+     * Same as {@link #recordTracked(Stage, List, int)} at the last tick passed to
+     * {@link #advanceTick}.
+     */
+    public void recordTracked(Stage stage, List<TrackedObject> objects) {
+        recordTracked(stage, objects, currentTick.get());
+    }
+
+    /**
+     * Same as {@link #record(Stage, String, int, int)} at the last tick passed to
+     * {@link #advanceTick}, for stages that do not know the current tick.
+     */
+    public void record(Stage stage, String objectId, int detectionTime) {
+        record(stage, objectId, detectionTime, currentTick.get());
+    }
+
+    public void advanceTick(int tick) {
+        currentTick.accumulateAndGet(tick, Math::max);
+    }
+
+    public void clearData() {
+        traces.clear();
+        currentTick.set(0);
+    }
+
+    /**
+     * @return per object, the time spent in each step between consecutive
+     *         stages, and percentiles of every step - and of the whole path - over
+     *         the objects that reached both of its stages.
+     */
+    public Map<String, Object> report() {
+        List<Trace> sorted = new ArrayList<>(traces.values());
+        sorted.sort((a, b) -> a.detectionTime != b.detectionTime
+                ? Integer.compare(a.detectionTime, b.detectionTime) : a.objectId.compareTo(b.objectId));
+
+        Map<String, Object> percentiles = new LinkedHashMap<>();
+        for (int to = 1; to < STAGES.length; to++) {
+            percentiles.put(stepName(to - 1, to), summarize(sorted, to - 1, to));
+        }
+        percentiles.put(stepName(0, STAGES.length - 1), summarize(sorted, 0, STAGES.length - 1));
+
+        List<Map<String, Object>> objects = new ArrayList<>();
+        for (Trace trace : sorted) {
+            objects.add(trace.breakdown());
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("percentiles", percentiles);
+        report.put("objects", objects);
+        return report;
+    }
+
+    public void writeToJson(String outputPath) {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        try (FileWriter writer = new FileWriter(outputPath)) {
+            gson.toJson(report(), writer);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static Map<String, Object> summarize(List<Trace> traces, int from, int to) {
+        List<Double> millis = new ArrayList<>();
+        List<Double> ticks = new ArrayList<>();
+        for (Trace trace : traces) {
+            if (trace.reached(from) && trace.reached(to)) {
+                millis.add(trace.millisBetween(from, to));
+                ticks.add((double) trace.ticksBetween(from, to));
+            }
+        }
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", millis.size());
+        summary.put("wallMillis", percentilesOf(millis));
+        summary.put("ticks", percentilesOf(ticks));
+        return summary;
+    }
+
+    private static String stepName(int from, int to) {
+        return STAGES[from] + "->" + STAGES[to];
+    }
+
+    private static Map<String, Double> percentilesOf(List<Double> values) {
+        Map<String, Double> result = new LinkedHashMap<>();
+        if (values.isEmpty()) {
+            return result;
+        }
+        double[] sorted = new double[values.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i);
+        }
+        Arrays.sort(sorted);
+        result.put("p50", nearestRank(sorted, 0.5));
+        result.put("p90", nearestRank(sorted, 0.9));
+        result.put("p99", nearestRank(sorted, 0.99));
+        result.put("max", sorted[sorted.length - 1]);
+        return result;
+    }
+
+    private static double nearestRank(double[] sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * When a stage was reached: the wall time and the tick, set together.
+     */
+    private static final class Stamp {
+        private final long nanos;
+        private final int tick;
+
+        private Stamp(long nanos, int tick) {
+            this.nanos = nanos;
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * The stages one object reached so far. Stages are stamped by different
+     * threads, each stage only once, with a single compare-and-set of its stamp, so
+     * a reader never sees the time of one stamp with the tick of another.
+     */
+    private static final class Trace {
+        private final String objectId;
+        private final int detectionTime;
+        private final AtomicReferenceArray<Stamp> stamps; // null until the stage is reached
+
+        private Trace(String objectId, int detectionTime) {
+            this.objectId = objectId;
+            this.detectionTime = detectionTime;
+            this.stamps = new AtomicReferenceArray<>(STAGES.length);
+        }
+
+        private void mark(Stage stage, long now, int tick) {
+            if (stamps.get(stage.ordinal()) == null) {
+                stamps.compareAndSet(stage.ordinal(), null, new Stamp(now, tick));
+            }
+        }
+
+        private boolean reached(int stage) {
+            return stamps.get(stage) != null;
+        }
+
+        private double millisBetween(int from, int to) {
+            return (stamps.get(to).nanos - stamps.get(from).nanos) / 1_000_000.0;
+        }
+
+        private int ticksBetween(int from, int to) {
+            return stamps.get(to).tick - stamps.get(from).tick;
+        }
+
+        private Map<String, Object> breakdown() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("id", objectId);
+            result.put("detectionTime", detectionTime);
+            Map<String, Object> steps = new LinkedHashMap<>();
+            for (int to = 1; to < STAGES.length; to++) {
+                if (reached(to - 1) && reached(to)) {
+                    Map<String, Object> step = new LinkedHashMap<>();
+                    step.put("wallMillis", millisBetween(to - 1, to));
+                    step.put("ticks", ticksBetween(to - 1, to));
+                    steps.put(stepName(to - 1, to), step);
+                }
+            }
+            result.put("steps", steps);
+            int last = STAGES.length - 1;
+            while (last > 0 && !reached(last)) {
+                last--;
+            }
+            result.put("lastStage", reached(last) ? STAGES[last].toString() : null);
+            if (reached(0) && reached(STAGES.length - 1)) {
+                result.put("totalWallMillis", millisBetween(0, STAGES.length - 1));
+                result.put("totalTicks", ticksBetween(0, STAGES.length - 1));
+            }
+            return result;
+        }
+    }
+}
@@ -11,6 +11,7 @@ import java.lang.reflect.Type;
 /**
  * LiDarDataBase is a singleton class responsible for managing LiDAR data.
  * It provides access to cloud point data and other relevant information for tracked objects.
+ * A {@link bgu.spl.mics.application.SimulationContext} creates a database of its own.
  */
 public class LiDarDataBase {
     private List<StampedCloudPoints> cloudPoints;
@@ -19,7 +20,11 @@ public class LiDarDataBase {
 		private static final LiDarDataBase liDarDataBase = new LiDarDataBase();
 	}
 
-    private LiDarDataBase() {
+    /**
+     * Creates an empty database of its own, for a simulation that does not share
+     * the singleton.
+     */
+    public LiDarDataBase() {
         cloudPoints = new ArrayList<>();
     }
 
@@ -68,7 +73,8 @@ public class LiDarDataBase {
     }
 
     public List<CloudPoint> getCloudPoints(String objectId, int time) {
-        for (StampedCloudPoints stamped : cloudPoints) {
+        for (int i = 0; i < cloudPoints.size(); i++) {
+            StampedCloudPoints stamped = cloudPoints.get(i);
             if (stamped.getId().equals(objectId) && stamped.getTime() == time) {
                 return stamped.getCloudPoints();
             }
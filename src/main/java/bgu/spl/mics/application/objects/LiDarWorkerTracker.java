@@ -1,7 +1,7 @@
 package bgu.spl.mics.application.objects;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -18,7 +18,16 @@ public class LiDarWorkerTracker {
     //Not clear what is the lastTrackedObjct in case of error. last sent to fusion? or last received from camera? asked in forum with no asnwer.
     private ArrayList<TrackedObject> lastTrackedObjects;
     private List<PendingDetection> toBeTrackedObjects;
+    private final LiDarDataBase liDarDataBase;
     public LiDarWorkerTracker(int id, int frequency) {
+        this(id, frequency, LiDarDataBase.getInstance());
+    }
+
+    /**
+     * @param liDarDataBase the cloud points this worker reads, instead of the singleton's.
+     */
+    public LiDarWorkerTracker(int id, int frequency, LiDarDataBase liDarDataBase) {
+        this.liDarDataBase = liDarDataBase;
         this.id = id;
         this.frequency = frequency;
         this.trackedObjectsCounter = 0; 
@@ -26,18 +35,22 @@ public class LiDarWorkerTracker {
         this.toBeTrackedObjects = new ArrayList<>();
         this.status = STATUS.UP;
     }
+    /**
+     * @return the objects tracked, or an empty list - shared, so it must not be
+     *         modified - if the detection is not due yet.
+     */
     public List<TrackedObject> processDetectedObjects(List<DetectedObject> detectedObjects, LiDarDataBase liDarDataBase, int timeOfDetection, int currentTick) {
-        List<TrackedObject> trackedObjects = new ArrayList<>();
+        List<TrackedObject> trackedObjects = Collections.emptyList();
         if (status == STATUS.UP) {
             int requiredTick = timeOfDetection + frequency;
             if (currentTick >= requiredTick) {
-                for (DetectedObject detectedObject : detectedObjects) {
-                    if (detectedObject.getId().equals("ERROR")) {
+                for (int i = 0; i < detectedObjects.size(); i++) {
+                    if (detectedObjects.get(i).getId().equals("ERROR")) {
                         status = STATUS.ERROR;
                         throw new IllegalStateException("LiDAR encountered an ERROR object. Status set to ERROR.");
                     }
                 }
-                trackedObjects.addAll(processDetectedObjectHelper(detectedObjects, liDarDataBase, timeOfDetection));
+                trackedObjects = processDetectedObjectHelper(detectedObjects, liDarDataBase, timeOfDetection);
                 lastTrackedObjects.clear();
                 lastTrackedObjects.addAll(trackedObjects);
                 trackedObjectsCounter += trackedObjects.size();
@@ -49,8 +62,12 @@ public class LiDarWorkerTracker {
         return trackedObjects;
     }
 
+    /**
+     * @return the pending objects that became due, or an empty list - shared, so
+     *         idle ticks allocate nothing - if there are none.
+     */
     public List<TrackedObject> handleTick(int currentTick) {
-        List<TrackedObject> trackedObjects = new ArrayList<>();
+        List<TrackedObject> trackedObjects = Collections.emptyList();
         if (status == STATUS.UP) {
             if (checkForErrorInDatabase(currentTick)) {
                 status = STATUS.ERROR;
@@ -61,15 +78,14 @@ public class LiDarWorkerTracker {
             }
 
             else {
-                Iterator<PendingDetection> iterator = toBeTrackedObjects.iterator();
-                while (iterator.hasNext()) {
-                    PendingDetection pending = iterator.next();
-                    List<TrackedObject> tmpTrackedObjects = processDetectedObjects(pending.getDetectedObject(), LiDarDataBase.getInstance(), pending.getTimeOfDetection(), currentTick);
+                for (int i = 0; i < toBeTrackedObjects.size(); i++) {
+                    PendingDetection pending = toBeTrackedObjects.get(i);
+                    List<TrackedObject> tmpTrackedObjects = processDetectedObjects(pending.getDetectedObject(), liDarDataBase, pending.getTimeOfDetection(), currentTick);
                     if (!tmpTrackedObjects.isEmpty()) {
                         trackedObjects = tmpTrackedObjects;
                         lastTrackedObjects.clear();
                         lastTrackedObjects.addAll(trackedObjects);
-                        iterator.remove();
+                        toBeTrackedObjects.remove(i);
                         break;
                     }
                 }
@@ -79,15 +95,15 @@ public class LiDarWorkerTracker {
     }
 
     private boolean checkForErrorInDatabase(int currentTick) {
-        LiDarDataBase database = LiDarDataBase.getInstance();
-        List<CloudPoint> errorCloudPoints = database.getCloudPoints("ERROR", currentTick);
+        List<CloudPoint> errorCloudPoints = liDarDataBase.getCloudPoints("ERROR", currentTick);
         boolean hasError = errorCloudPoints != null && !errorCloudPoints.isEmpty();
         return hasError;
     }
 
     private List<TrackedObject> processDetectedObjectHelper(List<DetectedObject> detectedObjects, LiDarDataBase liDarDataBase, int timeOfDetection) {
-        List<TrackedObject> result = new ArrayList<>();
-        for (DetectedObject detectedObject : detectedObjects) {
+        List<TrackedObject> result = new ArrayList<>(detectedObjects.size());
+        for (int i = 0; i < detectedObjects.size(); i++) {
+            DetectedObject detectedObject = detectedObjects.get(i);
             if (detectedObject.getId().equals("ERROR")) {
                 status = STATUS.ERROR;
                 throw new IllegalStateException("LiDAR encountered an ERROR object. Status set to ERROR.");
@@ -99,7 +115,8 @@ public class LiDarWorkerTracker {
     }
 
     private boolean isAlreadyTracked(List<DetectedObject> detectedObjects, int timeOfDetection) {
-        for (PendingDetection pending : toBeTrackedObjects) {
+        for (int i = 0; i < toBeTrackedObjects.size(); i++) {
+            PendingDetection pending = toBeTrackedObjects.get(i);
             if (pending.getTimeOfDetection() == timeOfDetection && pending.getDetectedObject().equals(detectedObjects)) {
                 return true;
             }
@@ -123,7 +140,7 @@ public class LiDarWorkerTracker {
         return new ArrayList<>(lastTrackedObjects);
     }
     public boolean checkIfDone(int currentTick) {
-        return (LiDarDataBase.getInstance().getSize() == trackedObjectsCounter);
+        return (liDarDataBase.getSize() == trackedObjectsCounter);
     }
 
     private static class PendingDetection {
@@ -11,7 +11,8 @@ public class SensorMonitor {
     private static class SensorMonitorHolder {  
         private static final SensorMonitor instance = new SensorMonitor();
     }
-    private SensorMonitor() {}
+    // a monitor of its own, for a simulation that does not share the singleton
+    public SensorMonitor() {}
 
     public static SensorMonitor getInstance() {
         return SensorMonitorHolder.instance;
@@ -3,6 +3,9 @@ package bgu.spl.mics.application.objects;
 import com.google.gson.Gson;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -10,7 +13,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Holds statistical information about the system's operation.
  * This class aggregates metrics such as the runtime of the system,
  * the number of objects detected and tracked, and the number of landmarks identified.
- * Singleton pattern ensures only one instance exists.
+ * The singleton instance is shared by default, a
+ * {@link bgu.spl.mics.application.SimulationContext} creates one of its own.
  */
 public class StatisticalFolder {
 
@@ -25,16 +29,20 @@ public class StatisticalFolder {
     private final AtomicBoolean error;
     private volatile String errorDescription; // Volatile as it is written and read directly
     private volatile String faultySensor;
+    private long[] tickJitter; // guarded by this, nanoseconds each paced tick went out after its deadline
+    private int tickJitterCount; // guarded by this
+    private long skippedTickDeadlines; // guarded by this
 
     /**
-     * Constructor for StatisticalFolder.
+     * Creates a folder of its own, for a simulation that does not share the singleton.
      */
-    private StatisticalFolder() {
+    public StatisticalFolder() {
         this.systemRuntime = new AtomicInteger(0);
         this.numDetectedObjects = new AtomicInteger(0);
         this.numTrackedObjects = new AtomicInteger(0);
         this.numLandmarks = new AtomicInteger(0);
         this.error = new AtomicBoolean(false);
+        this.tickJitter = new long[64];
     }
 
     public void changeTickTime(int ticks) {
@@ -108,4 +116,49 @@ public class StatisticalFolder {
     public synchronized String getFaultySensor() {
         return faultySensor;
     }
+
+    /**
+     * Records that a tick was sent {@code nanos} after its deadline (negative if early).
+     */
+    public synchronized void recordTickJitter(long nanos) {
+        if (tickJitterCount == tickJitter.length) {
+            tickJitter = Arrays.copyOf(tickJitter, tickJitter.length * 2);
+        }
+        tickJitter[tickJitterCount++] = nanos;
+    }
+
+    /**
+     * Records that {@code count} tick deadlines were dropped by the skip policy.
+     */
+    public synchronized void addSkippedTickDeadlines(long count) {
+        skippedTickDeadlines += count;
+    }
+
+    /**
+     * @return how late the paced ticks went out: their count, mean, p50, p99 and
+     *         max, in nanoseconds, and the number of skipped deadlines.
+     */
+    public synchronized Map<String, Object> getTickJitter() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", tickJitterCount);
+        if (tickJitterCount > 0) {
+            long[] sorted = Arrays.copyOf(tickJitter, tickJitterCount);
+            Arrays.sort(sorted);
+            long sum = 0;
+            for (long nanos : sorted) {
+                sum += nanos;
+            }
+            summary.put("meanNanos", sum / sorted.length);
+            summary.put("p50Nanos", nearestRank(sorted, 0.5));
+            summary.put("p99Nanos", nearestRank(sorted, 0.99));
+            summary.put("maxNanos", sorted[sorted.length - 1]);
+        }
+        summary.put("skippedDeadlines", skippedTickDeadlines);
+        return summary;
+    }
+
+    private static long nearestRank(long[] sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
 }
\ No newline at end of file
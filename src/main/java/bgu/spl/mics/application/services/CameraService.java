@@ -3,7 +3,7 @@ package bgu.spl.mics.application.services;
 import bgu.spl.mics.application.objects.STATUS;
 import bgu.spl.mics.application.objects.SensorMonitor;
 import bgu.spl.mics.Future;
-import java.util.ArrayList;
+import java.util.List;
 import bgu.spl.mics.Event;
 import bgu.spl.mics.MicroService;
 import bgu.spl.mics.application.*;
@@ -12,6 +12,7 @@ import bgu.spl.mics.application.objects.DetectedObject;
 import bgu.spl.mics.application.objects.Camera;
 import bgu.spl.mics.application.objects.StampedDetectedObjects;
 import bgu.spl.mics.application.objects.StatisticalFolder;
+import bgu.spl.mics.application.objects.LatencyTracer;
 import java.util.HashMap;
 
 /**
@@ -23,19 +24,28 @@ import java.util.HashMap;
  */
 public class CameraService extends MicroService {
     
+    // messages taken from the bus at once, see MicroService#setBatchSize
+    private static final int BATCH_SIZE = 16;
+
     private final Camera camera;
     private final StatisticalFolder statisticalFolder;
+    private final SensorMonitor sensorMonitor;
+    private final LatencyTracer tracer;
 
     /**
      * Constructor for CameraService.
      *
-     * @param camera The Camera object that this service will use to detect objects.
+     * @param camera  The Camera object that this service will use to detect objects.
+     * @param context The simulation the service runs in.
      */
-    public CameraService(Camera camera) {
-        super("CameraService-" + camera.getId());
+    public CameraService(Camera camera, SimulationContext context) {
+        super("CameraService-" + camera.getId(), context.getMessageBus());
+        setBatchSize(BATCH_SIZE);
         this.camera = camera;
-        SensorMonitor.getInstance().addSensor("Camera " + camera.getId());
-        this.statisticalFolder = StatisticalFolder.getInstance();
+        this.sensorMonitor = context.getSensorMonitor();
+        sensorMonitor.addSensor("Camera " + camera.getId());
+        this.statisticalFolder = context.getStatisticalFolder();
+        this.tracer = context.getLatencyTracer();
     }
 
     /**
@@ -68,11 +78,14 @@ public class CameraService extends MicroService {
         }
         else {
             int numDetections = camera.setToBeSentObjects(tick);
-            if(numDetections > 0) 
+            if(numDetections > 0) {
                 statisticalFolder.incrementDetectedObjects(numDetections);
-            ArrayList<DetectedObject> detections = camera.getDetectedObjectsToSend(tick);
-            if (detections.size() > 0) {
+                tracer.record(LatencyTracer.Stage.DETECTED, camera.getLastDetectedObjects().get(0).getDetectedObjects(), tick, tick);
+            }
+            List<DetectedObject> detections = camera.getDetectedObjectsToSend(tick);
+            if (!detections.isEmpty()) {
                 DetectObjectsEvent event = new DetectObjectsEvent(detections, tick - camera.getFrequency());
+                tracer.record(LatencyTracer.Stage.SENT_TO_LIDAR, detections, event.getTick(), tick);
                 sendEvent(event);
             } 
         }
@@ -80,7 +93,7 @@ public class CameraService extends MicroService {
     private void checkFinished() {
         if(camera.getRemainingObjects() == 0) {
             camera.setStatus(STATUS.DOWN);
-            SensorMonitor.getInstance().removeSensor("Camera " + camera.getId());
+            sensorMonitor.removeSensor("Camera " + camera.getId());
             terminate();
         }
     }
@@ -1,8 +1,10 @@
 package bgu.spl.mics.application.services;
 
 import bgu.spl.mics.MicroService;
+import bgu.spl.mics.application.SimulationContext;
 import bgu.spl.mics.application.messages.*;
 import bgu.spl.mics.application.objects.FusionSlam;
+import bgu.spl.mics.application.objects.LatencyTracer;
 import bgu.spl.mics.application.objects.Pose;
 import bgu.spl.mics.application.objects.TrackedObject;
 
@@ -18,15 +20,18 @@ import java.util.logging.Level;
  */
 public class FusionSlamService extends MicroService {
     private final FusionSlam fusionSlam;
+    private final LatencyTracer tracer;
 
     /**
      * Constructor for FusionSlamService.
      *
-     * @param fusionSlam The FusionSLAM object responsible for managing the global map.
+     * @param context The simulation the service runs in, its FusionSLAM object
+     *                manages the global map.
      */
-    public FusionSlamService(FusionSlam fusionSlam) {
-        super("FusionSlamService");
-        this.fusionSlam = fusionSlam;
+    public FusionSlamService(SimulationContext context) {
+        super("FusionSlamService", context.getMessageBus());
+        this.fusionSlam = context.getFusionSlam();
+        this.tracer = context.getLatencyTracer();
     }
 
     /**
@@ -38,6 +43,7 @@ public class FusionSlamService extends MicroService {
     protected void initialize() {
         subscribeEvent(TrackedObjectsEvent.class, trackedObjectsEvent -> {
             List<TrackedObject> trackedObjects = trackedObjectsEvent.getTrackedObjects();
+            tracer.recordTracked(LatencyTracer.Stage.FUSION_RECEIVED, trackedObjects);
             for (TrackedObject object : trackedObjects) {
                 fusionSlam.updateLandMark(object);
             }
@@ -47,7 +53,10 @@ public class FusionSlamService extends MicroService {
             fusionSlam.addPose(poseEvent.getPose());
         });
 
+        // Retrying the pending objects once covers any number of missed ticks
+        enableCoalescing(TickBroadcast.class);
         subscribeBroadcast(TickBroadcast.class, tick -> {
+            tracer.advanceTick(tick.getTick());
             fusionSlam.tickEvent();
         });
 
@@ -7,6 +7,7 @@ import javax.sound.midi.Track;
 
 import bgu.spl.mics.Event;
 import bgu.spl.mics.MicroService;
+import bgu.spl.mics.application.SimulationContext;
 import bgu.spl.mics.application.messages.*;
 import bgu.spl.mics.application.objects.*;
 
@@ -20,24 +21,32 @@ import bgu.spl.mics.application.objects.*;
  */
 public class LiDarService extends MicroService {
 
+    // messages taken from the bus at once, see MicroService#setBatchSize
+    private static final int BATCH_SIZE = 16;
 
     private final LiDarWorkerTracker liDarWorkerTracker;
     private final LiDarDataBase liDarDataBase;
     private final StatisticalFolder statisticalFolder;
+    private final SensorMonitor sensorMonitor;
+    private final LatencyTracer tracer;
     private int currentTick;
 
     /**
      * Constructor for LiDarService.
      *
      * @param liDarWorkerTracker The LiDAR tracker object that this service will use to process data.
+     * @param context            The simulation the service runs in.
      */
-    public LiDarService(LiDarWorkerTracker liDarWorkerTracker) {
-        super("LiDarService-" + liDarWorkerTracker.getId());
+    public LiDarService(LiDarWorkerTracker liDarWorkerTracker, SimulationContext context) {
+        super("LiDarService-" + liDarWorkerTracker.getId(), context.getMessageBus());
+        setBatchSize(BATCH_SIZE);
         this.liDarWorkerTracker = liDarWorkerTracker;
-        this.liDarDataBase = LiDarDataBase.getInstance();
-        this.statisticalFolder = StatisticalFolder.getInstance();
+        this.liDarDataBase = context.getLiDarDataBase();
+        this.statisticalFolder = context.getStatisticalFolder();
+        this.sensorMonitor = context.getSensorMonitor();
+        this.tracer = context.getLatencyTracer();
         this.currentTick = 0;
-        SensorMonitor.getInstance().addSensor("LiDarWorkerTracker " + liDarWorkerTracker.getId());
+        sensorMonitor.addSensor("LiDarWorkerTracker " + liDarWorkerTracker.getId());
     }
 
     /**
@@ -49,6 +58,7 @@ public class LiDarService extends MicroService {
     protected void initialize() {
             subscribeEvent(DetectObjectsEvent.class, event -> {
             List<DetectedObject> detectedObjects = event.getDetectedObjects();
+            tracer.record(LatencyTracer.Stage.LIDAR_RECEIVED, detectedObjects, event.getTick(), currentTick);
             List<TrackedObject> trackedObjects = liDarWorkerTracker.processDetectedObjects(detectedObjects, liDarDataBase, event.getTick(), currentTick);
             statisticalFolder.incrementTrackedObjects(detectedObjects.size());
             if (!trackedObjects.isEmpty()) {
@@ -70,7 +80,7 @@ public class LiDarService extends MicroService {
                 sendTrackedEvent(trackedObjects);
             }
             else if (liDarWorkerTracker.getStatus() == STATUS.DOWN) {
-                SensorMonitor.getInstance().removeSensor("LiDarWorkerTracker " + liDarWorkerTracker.getId());
+                sensorMonitor.removeSensor("LiDarWorkerTracker " + liDarWorkerTracker.getId());
                 terminate();
         }});
 
@@ -86,6 +96,7 @@ public class LiDarService extends MicroService {
 
     private void sendTrackedEvent(List<TrackedObject> trackedObjects) {
         TrackedObjectsEvent trackedObjectsEvent = new TrackedObjectsEvent(trackedObjects);
+        tracer.recordTracked(LatencyTracer.Stage.SENT_TO_FUSION, trackedObjects, currentTick);
         sendEvent(trackedObjectsEvent);
     }
 }
@@ -2,6 +2,7 @@ package bgu.spl.mics.application.services;
 
 import bgu.spl.mics.application.messages.*;
 import bgu.spl.mics.MicroService;
+import bgu.spl.mics.application.SimulationContext;
 import bgu.spl.mics.application.objects.*;
 
 
@@ -15,10 +16,11 @@ public class PoseService extends MicroService {
     /**
      * Constructor for PoseService.
      *
-     * @param gpsimu The GPSIMU object that provides the robot's pose data.
+     * @param gpsimu  The GPSIMU object that provides the robot's pose data.
+     * @param context The simulation the service runs in.
      */
-    public PoseService(GPSIMU gpsimu) {
-        super("GPSIMU-MicroService");
+    public PoseService(GPSIMU gpsimu, SimulationContext context) {
+        super("GPSIMU-MicroService", context.getMessageBus());
         this.gpsimu = gpsimu;
     }
 
@@ -1,28 +1,64 @@
 package bgu.spl.mics.application.services;
 
+import bgu.spl.mics.MessageBusImpl;
 import bgu.spl.mics.MicroService;
+import bgu.spl.mics.application.ClockMode;
+import bgu.spl.mics.application.MissedTickPolicy;
+import bgu.spl.mics.application.SimulationContext;
 import bgu.spl.mics.application.messages.*;
 import bgu.spl.mics.application.objects.StatisticalFolder;
 import bgu.spl.mics.application.objects.SensorMonitor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 /**
  * TimeService acts as the global timer for the system, broadcasting TickBroadcast messages
  * at regular intervals and controlling the simulation's duration.
  */
 public class TimeService extends MicroService {
  
-    private final int TickTime;
+    private final long tickNanos;
     private final int Duration;
+    private final TickBroadcast[] ticks; // built up front, so sending a tick allocates nothing
+    private final MessageBusImpl bus;
+    private final ClockMode clockMode;
+    private final MissedTickPolicy missedTickPolicy;
+    private long deadline; // System.nanoTime() the next tick is due at, in real time
+    private boolean scheduled; // false until the first tick that is paced
     private int tickCounter;
     private SensorMonitor monitor;
     private StatisticalFolder statFolder;
  
-    public TimeService(int TickTime, int Duration) {
-        super("timer");
-        this.TickTime = TickTime;
+    /**
+     * @param TickTime the length of a tick, in seconds.
+     * @param Duration the number of ticks to run.
+     * @param context  the simulation the service runs in.
+     */
+    public TimeService(int TickTime, int Duration, SimulationContext context) {
+        this(TimeUnit.SECONDS.toNanos(TickTime), Duration, context, ClockMode.REALTIME, MissedTickPolicy.CATCH_UP);
+    }
+
+    /**
+     * @param tickNanos        the length of a tick, in nanoseconds, unused as fast as possible.
+     * @param Duration         the number of ticks to run.
+     * @param context          the simulation the service runs in.
+     * @param clockMode        how the ticks are paced.
+     * @param missedTickPolicy what to do in real time when a tick is late.
+     */
+    public TimeService(long tickNanos, int Duration, SimulationContext context, ClockMode clockMode,
+                       MissedTickPolicy missedTickPolicy) {
+        super("timer", context.getMessageBus());
+        this.clockMode = clockMode;
+        this.missedTickPolicy = missedTickPolicy;
+        this.tickNanos = tickNanos;
         this.Duration = Duration;
+        this.ticks = new TickBroadcast[Duration + 2];
+        for (int i = 0; i < ticks.length; i++) {
+            ticks[i] = new TickBroadcast(i);
+        }
         tickCounter = 1;
-        this.monitor = SensorMonitor.getInstance();
-        this.statFolder = StatisticalFolder.getInstance();
+        this.bus = context.getMessageBus();
+        this.monitor = context.getSensorMonitor();
+        this.statFolder = context.getStatisticalFolder();
     }
 
     /*
@@ -32,8 +68,9 @@ public class TimeService extends MicroService {
     @Override
     protected void initialize() {
 
+        // The crash overtakes our own pending tick, so tickCounter is the last tick sent
         subscribeBroadcast(CrashedBroadcast.class, crashedBroadcast -> {
-            statFolder.changeTickTime(tickCounter - 1);
+            statFolder.changeTickTime(tickCounter);
             terminate();
         });
         
@@ -44,14 +81,10 @@ public class TimeService extends MicroService {
                     statFolder.changeTickTime(tickCounter - 1);
                     sendBroadcast(new TerminatedBroadcast());
                     terminate();
-                    sendBroadcast(new TickBroadcast(tickCounter));
+                    sendBroadcast(tick(tickCounter));
                 }
                 else {
-                    TickBroadcast newTickBroadcast = new TickBroadcast(tickCounter);
-                    sendBroadcast(newTickBroadcast);
-                    try {
-                        Thread.sleep(TickTime*1000);
-                    } catch (Exception e) {}
+                    sendTickAndWait(tickCounter);
                 }
             }
             else {
@@ -60,6 +93,54 @@ public class TimeService extends MicroService {
                 terminate();
             }
         });
-        sendBroadcast(new TickBroadcast(tickCounter));
+        if (clockMode == ClockMode.AFAP) {
+            sendAcknowledgedBroadcast(tick(tickCounter)).get();
+        } else {
+            sendBroadcast(tick(tickCounter));
+        }
+    }
+
+    /**
+     * Sends {@code tick}, then waits before the next one may go out: until its
+     * deadline in real time, or until every other service handled the tick and all
+     * it caused when as fast as possible.
+     * <p>
+     * Real-time deadlines are a fixed grid, one tick apart from the first paced
+     * tick, so the time spent handling a tick does not add up over the run. How
+     * late each tick went out is recorded as the tick jitter.
+     */
+    private void sendTickAndWait(int tick) {
+        if (clockMode == ClockMode.AFAP) {
+            sendAcknowledgedBroadcast(tick(tick)).get();
+            return;
+        }
+        long sentAt = System.nanoTime();
+        sendBroadcast(tick(tick));
+        if (scheduled) {
+            statFolder.recordTickJitter(sentAt - deadline);
+        } else {
+            deadline = sentAt;
+            scheduled = true;
+        }
+        deadline += tickNanos;
+        long late = System.nanoTime() - deadline;
+        if (late > 0 && missedTickPolicy == MissedTickPolicy.SKIP) {
+            long missed = late / tickNanos + 1;
+            statFolder.addSkippedTickDeadlines(missed);
+            deadline += missed * tickNanos;
+        }
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    /**
+     * @return the broadcast of {@code tick}, once the bus clock event deadlines
+     *         are checked against was moved to it.
+     */
+    private TickBroadcast tick(int tick) {
+        bus.advanceTick(tick);
+        return tick < ticks.length ? ticks[tick] : new TickBroadcast(tick);
     }
 }
@@ -0,0 +1,182 @@
+package bgu.spl.mics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FutureTest {
+
+    /**
+     * Precondition:
+     * A Future is resolved with {@code null}, then resolved again.
+     *
+     * Postcondition:
+     * {@code null} is a valid result: the Future is done and returns it without
+     * waiting. The second resolve is ignored.
+     */
+    @Test
+    void testNullResultAndFirstResolveWins() {
+        Future<String> future = new Future<>();
+        assertFalse(future.isDone());
+        future.resolve(null);
+        assertTrue(future.isDone());
+        assertNull(future.get());
+        future.resolve("late");
+        assertNull(future.get(1, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Precondition:
+     * An unresolved Future is waited on with a short timeout, then by several
+     * threads, some of them with a long enough timeout.
+     *
+     * Postcondition:
+     * The timed-out wait returns {@code null} after its timeout; every other
+     * waiter gets the result once the Future is resolved.
+     */
+    @Test
+    void testWaitersAndTimeouts() throws InterruptedException {
+        Future<Integer> future = new Future<>();
+        long start = System.nanoTime();
+        assertNull(future.get(20, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+
+        int waiters = 8;
+        Integer[] results = new Integer[waiters];
+        Thread[] threads = new Thread[waiters];
+        for (int i = 0; i < waiters; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> results[index] = index % 2 == 0 ? future.get() : future.get(10, TimeUnit.SECONDS));
+            threads[i].start();
+        }
+        Thread.sleep(50);
+        future.resolve(42);
+        for (Thread t : threads) {
+            t.join(10_000);
+        }
+        for (Integer result : results) {
+            assertEquals(Integer.valueOf(42), result);
+        }
+    }
+
+    /**
+     * Precondition:
+     * A callback is registered on a Future before it is resolved and another one after.
+     *
+     * Postcondition:
+     * Both callbacks receive the result exactly once, and resolving again does not
+     * run them again.
+     */
+    @Test
+    void testOnComplete() {
+        Future<String> future = new Future<>();
+        List<String> seen = new ArrayList<>();
+        future.onComplete(seen::add);
+        assertTrue(seen.isEmpty());
+        future.resolve("done");
+        future.onComplete(seen::add);
+        assertEquals(Arrays.asList("done", "done"), seen);
+        future.resolve("again");
+        assertEquals(2, seen.size());
+    }
+
+    /**
+     * Precondition:
+     * Steps are chained on an unresolved Future with thenApply and thenCompose.
+     *
+     * Postcondition:
+     * The chained Futures are resolved, without blocking, once every step they
+     * depend on is resolved.
+     */
+    @Test
+    void testThenApplyAndThenCompose() {
+        Future<Integer> first = new Future<>();
+        Future<Integer> second = new Future<>();
+        Future<String> chained = first.thenApply(x -> x * 2).thenCompose(x -> second.thenApply(y -> x + "+" + y));
+        CompletableFuture<String> completable = chained.toCompletableFuture();
+        first.resolve(5);
+        assertFalse(chained.isDone());
+        second.resolve(1);
+        assertTrue(chained.isDone());
+        assertEquals("10+1", chained.get());
+        assertEquals("10+1", completable.getNow(null));
+    }
+
+    /**
+     * Precondition:
+     * Several Futures are combined with allOf and anyOf, and resolved from other threads.
+     *
+     * Postcondition:
+     * allOf is resolved with every result in the original order once all are
+     * resolved; anyOf is resolved with the first result.
+     */
+    @Test
+    void testAllOfAndAnyOf() throws InterruptedException {
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(new Future<>());
+        }
+        Future<List<Integer>> all = Future.allOf(futures);
+        Future<Integer> any = Future.anyOf(futures);
+        futures.get(3).resolve(3);
+        assertEquals(Integer.valueOf(3), any.get(1, TimeUnit.SECONDS));
+        assertFalse(all.isDone());
+
+        List<Thread> resolvers = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            Future<Integer> future = futures.get(i);
+            int value = i;
+            resolvers.add(new Thread(() -> future.resolve(value)));
+        }
+        resolvers.forEach(Thread::start);
+        for (Thread t : resolvers) {
+            t.join();
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7), all.get(1, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(3), any.get());
+        assertTrue(Future.<Integer>allOf(new ArrayList<Future<Integer>>()).get().isEmpty());
+    }
+
+    /**
+     * Precondition:
+     * A Future has two callbacks that throw, registered before and around a
+     * thread parked in an untimed get() and a callback that does not throw.
+     *
+     * Postcondition:
+     * resolve wakes the waiting thread and runs every callback, then rethrows the
+     * first exception with the second one suppressed.
+     */
+    @Test
+    void testThrowingCallbackDoesNotStrandOthers() throws InterruptedException {
+        Future<Integer> future = new Future<>();
+        List<Integer> seen = new ArrayList<>();
+        future.onComplete(r -> {
+            throw new IllegalStateException("first");
+        });
+        Future<Integer> applied = future.thenApply(r -> {
+            throw new IllegalArgumentException("second");
+        });
+        Integer[] got = new Integer[1];
+        Thread waiter = new Thread(() -> got[0] = future.get());
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING) {
+            Thread.yield();
+        }
+        future.onComplete(seen::add);
+
+        IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> future.resolve(5));
+        assertEquals("first", thrown.getMessage());
+        assertEquals(1, thrown.getSuppressed().length);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertEquals(Integer.valueOf(5), got[0]);
+        assertEquals(Arrays.asList(5), seen);
+        assertFalse(applied.isDone());
+    }
+}
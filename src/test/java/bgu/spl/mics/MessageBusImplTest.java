@@ -2,13 +2,28 @@ package bgu.spl.mics;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import bgu.spl.mics.application.messages.*;
 import bgu.spl.mics.application.objects.DetectedObject;
 import bgu.spl.mics.application.objects.Pose;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import bgu.spl.mics.*;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -124,6 +139,753 @@ class MessageBusImplTest {
         assertEquals(a+b+c, 99);
     }
 
+
+    /**
+     * Precondition:
+     * Three microservices are registered and subscribed to `PoseEvent`.
+     *
+     * Postcondition:
+     * Events sent concurrently by several threads are still split evenly between the
+     * subscribers, and no event is lost.
+     */
+    @Test
+    void testRoundRobinConcurrentSenders() throws InterruptedException {
+        messageBus.subscribeEvent(PoseEvent.class, microServiceA);
+        messageBus.subscribeEvent(PoseEvent.class, microServiceB);
+        messageBus.subscribeEvent(PoseEvent.class, microServiceC);
+        int senders = 4;
+        int eventsPerSender = 300;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[senders];
+        for (int t = 0; t < senders; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (int i = 0; i < eventsPerSender; i++) {
+                    assertNotNull(messageBus.sendEvent(new PoseEvent(new Pose(i, i, i, i))));
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        int expected = senders * eventsPerSender / 3;
+        assertEquals(expected, messageBus.getMessegeQueue(microServiceA).size());
+        assertEquals(expected, messageBus.getMessegeQueue(microServiceB).size());
+        assertEquals(expected, messageBus.getMessegeQueue(microServiceC).size());
+    }
+
+    /**
+     * Precondition:
+     * `microServiceA` is subscribed to `PoseEvent`.
+     *
+     * Postcondition:
+     * The bus keeps a future only while its event is in flight: completing the event resolves
+     * and drops it, and a future that is never completed is dropped once it expires.
+     */
+    @Test
+    void testFuturesAreDroppedAfterCompletionOrExpiry() throws InterruptedException {
+        messageBus.subscribeEvent(PoseEvent.class, microServiceA);
+        Pose pose = new Pose(1, 1, 1, 1);
+        PoseEvent completed = new PoseEvent(pose);
+        Future<Pose> future = messageBus.sendEvent(completed);
+        assertEquals(1, messageBus.getPendingFuturesCount());
+        messageBus.complete(completed, pose);
+        assertTrue(future.isDone());
+        assertEquals(pose, future.get());
+        assertEquals(0, messageBus.getPendingFuturesCount());
+
+        messageBus.setFutureExpiry(10, TimeUnit.MILLISECONDS);
+        try {
+            messageBus.sendEvent(new PoseEvent(pose)); // never completed
+            assertEquals(1, messageBus.getPendingFuturesCount());
+            Thread.sleep(50);
+            assertEquals(0, messageBus.getPendingFuturesCount());
+        } finally {
+            messageBus.setFutureExpiry(60, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Precondition:
+     * `microServiceA` reads `TickBroadcast` through a channel and has a message
+     * listener, as a service run by the actor scheduler does.
+     *
+     * Postcondition:
+     * Publishing only calls the listener when the consumer is idle: once for the
+     * first tick, not for the ticks published while it has some to read, and again
+     * once it read them all and went idle.
+     */
+    @Test
+    void testChannelWakesOnlyIdleSubscribers() throws InterruptedException {
+        messageBus.enableBroadcastChannel(TickBroadcast.class, 8);
+        messageBus.subscribeBroadcast(TickBroadcast.class, microServiceA);
+        AtomicInteger wakeUps = new AtomicInteger();
+        messageBus.setMessageListener(microServiceA, wakeUps::incrementAndGet);
+
+        for (int i = 1; i <= 3; i++) {
+            messageBus.sendBroadcast(new TickBroadcast(i));
+        }
+        assertEquals(1, wakeUps.get());
+        assertTrue(messageBus.idle(microServiceA)); // ticks are waiting, it must not stop
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(i, ((TickBroadcast) messageBus.awaitMessage(microServiceA)).getTick());
+        }
+        assertFalse(messageBus.idle(microServiceA));
+        messageBus.sendBroadcast(new TickBroadcast(4));
+        messageBus.sendBroadcast(new TickBroadcast(5));
+        assertEquals(2, wakeUps.get());
+    }
+
+    /**
+     * Precondition:
+     * `TickBroadcast` is delivered through a broadcast channel, `microServiceA` and
+     * `microServiceB` are subscribed to it and `microServiceA` also handles `PoseEvent`.
+     *
+     * Postcondition:
+     * Every subscriber receives each tick once, and messages from one sender reach
+     * `microServiceA` in the order they were sent, whether they came through the
+     * channel or through its queue.
+     */
+    @Test
+    void testBroadcastChannelKeepsSendOrder() throws InterruptedException {
+        messageBus.enableBroadcastChannel(TickBroadcast.class, 4);
+        messageBus.subscribeBroadcast(TickBroadcast.class, microServiceA);
+        messageBus.subscribeBroadcast(TickBroadcast.class, microServiceB);
+        messageBus.subscribeEvent(PoseEvent.class, microServiceA);
+
+        PoseEvent event1 = new PoseEvent(new Pose(1, 1, 1, 1));
+        TickBroadcast tick1 = new TickBroadcast(1);
+        PoseEvent event2 = new PoseEvent(new Pose(2, 2, 2, 2));
+        TickBroadcast tick2 = new TickBroadcast(2);
+        messageBus.sendEvent(event1);
+        messageBus.sendBroadcast(tick1);
+        messageBus.sendEvent(event2);
+        messageBus.sendBroadcast(tick2);
+
+        assertEquals(4, messageBus.getMessegeQueue(microServiceA).size());
+        assertEquals(event1, messageBus.awaitMessage(microServiceA));
+        assertEquals(tick1, messageBus.awaitMessage(microServiceA));
+        assertEquals(event2, messageBus.awaitMessage(microServiceA));
+        assertEquals(tick2, messageBus.awaitMessage(microServiceA));
+        assertTrue(messageBus.getMessegeQueue(microServiceA).isEmpty());
+
+        assertEquals(tick1, messageBus.awaitMessage(microServiceB));
+        assertEquals(tick2, messageBus.awaitMessage(microServiceB));
+
+        // microServiceB stops reading: once unregistered it must not hold the ring back
+        messageBus.unregister(microServiceB);
+        for (int i = 3; i < 20; i++) {
+            TickBroadcast tick = new TickBroadcast(i);
+            messageBus.sendBroadcast(tick);
+            assertEquals(tick, messageBus.awaitMessage(microServiceA));
+        }
+    }
+
+    /**
+     * Precondition:
+     * `TickBroadcast` goes through a channel of 4 slots with a short stall timeout;
+     * `microServiceA` reads every tick, `microServiceB` is subscribed but never reads.
+     *
+     * Postcondition:
+     * The sender is not blocked for good: once the timeout passed `microServiceB`
+     * is evicted from the channel and sees no more ticks, while `microServiceA`
+     * still receives all of them in order. The eviction shows in the metrics of
+     * `microServiceB` only.
+     */
+    @Test
+    void testStalledChannelSubscriberIsEvicted() throws InterruptedException {
+        messageBus.enableBroadcastChannel(TickBroadcast.class, 4, 100, TimeUnit.MILLISECONDS);
+        messageBus.subscribeBroadcast(TickBroadcast.class, microServiceA);
+        messageBus.subscribeBroadcast(TickBroadcast.class, microServiceB);
+        List<Message> received = Collections.synchronizedList(new ArrayList<>());
+        Thread reader = new Thread(() -> {
+            try {
+                for (int i = 1; i <= 20; i++) {
+                    received.add(messageBus.awaitMessage(microServiceA));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        reader.start();
+        Thread sender = new Thread(() -> {
+            for (int i = 1; i <= 20; i++) {
+                messageBus.sendBroadcast(new TickBroadcast(i));
+            }
+        });
+        sender.start();
+        sender.join(5000);
+        assertFalse(sender.isAlive());
+        reader.join(5000);
+        assertEquals(20, received.size());
+        for (int i = 0; i < received.size(); i++) {
+            assertEquals(i + 1, ((TickBroadcast) received.get(i)).getTick());
+        }
+        assertTrue(messageBus.getMessegeQueue(microServiceB).isEmpty());
+        for (MetricsSnapshot.ServiceMetrics service : messageBus.getMetrics().getServices()) {
+            assertEquals(service.getService().equals("MicroServiceB") ? 1 : 0, service.getChannelEvictions());
+        }
+    }
+
+    /**
+     * Precondition:
+     * Every microservice has a mailbox bounded to 2 messages, each with a different
+     * backpressure policy, and all are subscribed to `PoseEvent`.
+     *
+     * Postcondition:
+     * Once a mailbox is full, new messages are handled by its policy, and each time a
+     * policy is applied it is counted.
+     */
+    @Test
+    void testBoundedMailboxPolicies() throws InterruptedException {
+        PoseEvent[] events = new PoseEvent[3];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = new PoseEvent(new Pose(i, i, i, i));
+        }
+        // DROP_OLDEST keeps the newest two
+        messageBus.setMailboxCapacity(microServiceA, 2, BackpressurePolicy.DROP_OLDEST);
+        messageBus.subscribeEvent(PoseEvent.class, microServiceA);
+        for (PoseEvent e : events) {
+            assertNotNull(messageBus.sendEvent(e));
+        }
+        assertEquals(events[1], messageBus.awaitMessage(microServiceA));
+        assertEquals(events[2], messageBus.awaitMessage(microServiceA));
+        assertEquals(1, messageBus.getBackpressureCount(BackpressurePolicy.DROP_OLDEST));
+        messageBus.unregister(microServiceA);
+
+        // DROP_NEWEST keeps the oldest two, the dropped event gets no future
+        messageBus.setMailboxCapacity(microServiceB, 2, BackpressurePolicy.DROP_NEWEST);
+        messageBus.subscribeEvent(PoseEvent.class, microServiceB);
+        assertNotNull(messageBus.sendEvent(events[0]));
+        assertNotNull(messageBus.sendEvent(events[1]));
+        assertNull(messageBus.sendEvent(events[2]));
+        assertEquals(events[0], messageBus.awaitMessage(microServiceB));
+        assertEquals(events[1], messageBus.awaitMessage(microServiceB));
+        assertEquals(1, messageBus.getBackpressureCount(BackpressurePolicy.DROP_NEWEST));
+        messageBus.unregister(microServiceB);
+
+        // BLOCK makes the sender wait until the receiver takes a message
+        messageBus.setMailboxCapacity(microServiceC, 2, BackpressurePolicy.BLOCK);
+        messageBus.subscribeEvent(PoseEvent.class, microServiceC);
+        messageBus.sendEvent(events[0]);
+        messageBus.sendEvent(events[1]);
+        Thread sender = new Thread(() -> messageBus.sendEvent(events[2]));
+        sender.start();
+        sender.join(200);
+        assertTrue(sender.isAlive(), "Sender should wait for room in the mailbox");
+        assertEquals(events[0], messageBus.awaitMessage(microServiceC));
+        sender.join(5000);
+        assertFalse(sender.isAlive());
+        assertEquals(events[1], messageBus.awaitMessage(microServiceC));
+        assertEquals(events[2], messageBus.awaitMessage(microServiceC));
+        assertEquals(1, messageBus.getBackpressureCount(BackpressurePolicy.BLOCK));
+    }
+
+    /**
+     * Precondition:
+     * Every mailbox may hold a single `TickBroadcast`, coalescing the rest.
+     *
+     * Postcondition:
+     * Only the latest pending tick is kept, other messages are not affected.
+     */
+    @Test
+    void testCoalescingTypeLimit() throws InterruptedException {
+        messageBus.setMailboxCapacity(TickBroadcast.class, 1, BackpressurePolicy.COALESCE);
+        messageBus.subscribeBroadcast(TickBroadcast.class, microServiceA);
+        messageBus.subscribeEvent(PoseEvent.class, microServiceA);
+        PoseEvent event = new PoseEvent(new Pose(1, 1, 1, 1));
+        TickBroadcast lastTick = new TickBroadcast(3);
+        messageBus.sendBroadcast(new TickBroadcast(1));
+        messageBus.sendEvent(event);
+        messageBus.sendBroadcast(new TickBroadcast(2));
+        messageBus.sendBroadcast(lastTick);
+        assertEquals(2, messageBus.getMessegeQueue(microServiceA).size());
+        assertEquals(event, messageBus.awaitMessage(microServiceA));
+        assertEquals(lastTick, messageBus.awaitMessage(microServiceA));
+        assertEquals(2, messageBus.getBackpressureCount(BackpressurePolicy.COALESCE));
+    }
+
+    /**
+     * Precondition:
+     * `microServiceA` coalesces `TickBroadcast`s, `microServiceB` does not. Ticks go
+     * through a broadcast channel and `microServiceA` also handles `PoseEvent`.
+     *
+     * Postcondition:
+     * Consecutive pending ticks reach `microServiceA` as one tick carrying their range,
+     * ticks separated by another message are not merged, and `microServiceB` still
+     * receives every tick.
+     */
+    @Test
+    void testTickCoalescing() throws InterruptedException {
+        messageBus.enableBroadcastChannel(TickBroadcast.class, 16);
+        messageBus.subscribeBroadcast(TickBroadcast.class, microServiceA);
+        messageBus.subscribeBroadcast(TickBroadcast.class, microServiceB);
+        messageBus.subscribeEvent(PoseEvent.class, microServiceA);
+        messageBus.enableCoalescing(TickBroadcast.class, microServiceA);
+
+        PoseEvent event = new PoseEvent(new Pose(1, 1, 1, 1));
+        messageBus.sendBroadcast(new TickBroadcast(1));
+        messageBus.sendBroadcast(new TickBroadcast(2));
+        messageBus.sendBroadcast(new TickBroadcast(3));
+        messageBus.sendEvent(event);
+        messageBus.sendBroadcast(new TickBroadcast(4));
+        messageBus.sendBroadcast(new TickBroadcast(5));
+
+        TickBroadcast first = (TickBroadcast) messageBus.awaitMessage(microServiceA);
+        assertEquals(1, first.getFirstTick());
+        assertEquals(3, first.getTick());
+        assertEquals(event, messageBus.awaitMessage(microServiceA));
+        TickBroadcast second = (TickBroadcast) messageBus.awaitMessage(microServiceA);
+        assertEquals(4, second.getFirstTick());
+        assertEquals(5, second.getTick());
+        assertTrue(messageBus.getMessegeQueue(microServiceA).isEmpty());
+
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, ((TickBroadcast) messageBus.awaitMessage(microServiceB)).getTick());
+        }
+    }
+
+    /**
+     * Precondition:
+     * All three microservices are subscribed to `PoseEvent`, and `microServiceA` and
+     * `microServiceB` already have pending messages.
+     *
+     * Postcondition:
+     * With least-loaded routing events go to the idle `microServiceC` until the
+     * mailboxes are even, and power-of-two-choices never picks the busier of two subscribers.
+     */
+    @Test
+    void testLoadAwareRouting() throws InterruptedException {
+        messageBus.subscribeEvent(PoseEvent.class, microServiceA);
+        messageBus.subscribeEvent(PoseEvent.class, microServiceB);
+        messageBus.subscribeEvent(PoseEvent.class, microServiceC);
+        for (int i = 0; i < 6; i++) {
+            messageBus.sendEvent(new PoseEvent(new Pose(i, i, i, i))); // 2 each, round-robin
+        }
+        messageBus.awaitMessage(microServiceC);
+        messageBus.awaitMessage(microServiceC);
+
+        messageBus.setRoutingStrategy(PoseEvent.class, RoutingStrategies.leastLoaded());
+        messageBus.sendEvent(new PoseEvent(new Pose(6, 6, 6, 6)));
+        messageBus.sendEvent(new PoseEvent(new Pose(7, 7, 7, 7)));
+        assertEquals(2, messageBus.getMessegeQueue(microServiceA).size());
+        assertEquals(2, messageBus.getMessegeQueue(microServiceB).size());
+        assertEquals(2, messageBus.getMessegeQueue(microServiceC).size());
+
+        messageBus.unregister(microServiceC);
+        messageBus.awaitMessage(microServiceB);
+        messageBus.setRoutingStrategy(PoseEvent.class, RoutingStrategies.powerOfTwoChoices());
+        messageBus.sendEvent(new PoseEvent(new Pose(8, 8, 8, 8)));
+        assertEquals(2, messageBus.getMessegeQueue(microServiceA).size());
+        assertEquals(2, messageBus.getMessegeQueue(microServiceB).size());
+    }
+
+    /**
+     * Precondition:
+     * All three microservices are subscribed to `DetectObjectsEvent` with key-affinity routing.
+     *
+     * Postcondition:
+     * Every detection of the same object goes to the same microservice, and when a
+     * microservice leaves, only the objects it owned move to another one.
+     */
+    @Test
+    void testKeyAffinityRouting() throws InterruptedException {
+        messageBus.setRoutingStrategy(DetectObjectsEvent.class, RoutingStrategies.keyAffinity());
+        MicroService[] services = {microServiceA, microServiceB, microServiceC};
+        for (MicroService m : services) {
+            messageBus.subscribeEvent(DetectObjectsEvent.class, m);
+        }
+        Map<String, MicroService> owners = new HashMap<>();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 10; i++) {
+                messageBus.sendEvent(detection("Wall_" + i));
+            }
+            for (MicroService m : services) {
+                while (!messageBus.getMessegeQueue(m).isEmpty()) {
+                    String id = (String) ((DetectObjectsEvent) messageBus.awaitMessage(m)).getRoutingKey();
+                    MicroService previous = owners.put(id, m);
+                    assertTrue(previous == null || previous == m, id + " moved between subscribers");
+                }
+            }
+        }
+        assertEquals(10, owners.size());
+
+        messageBus.unregister(microServiceC);
+        for (int i = 0; i < 10; i++) {
+            String id = "Wall_" + i;
+            messageBus.sendEvent(detection(id));
+            MicroService receiver = messageBus.getMessegeQueue(microServiceA).isEmpty() ? microServiceB : microServiceA;
+            assertEquals(id, ((DetectObjectsEvent) messageBus.awaitMessage(receiver)).getRoutingKey());
+            if (owners.get(id) != microServiceC) {
+                assertEquals(owners.get(id), receiver, id + " moved although its subscriber stayed");
+            }
+        }
+    }
+
+    private DetectObjectsEvent detection(String objectId) {
+        return new DetectObjectsEvent(Collections.singletonList(new DetectedObject(objectId, "Wall")), 0);
+    }
+
+    /**
+     * Precondition:
+     * `microServiceA` handles `PoseEvent` and receives `TickBroadcast` through a
+     * broadcast channel, with events and ticks waiting in its mailbox.
+     *
+     * Postcondition:
+     * A batch holds at most the requested number of messages, in send order, and
+     * never waits for more than the first one.
+     */
+    @Test
+    void testAwaitMessagesBatch() throws InterruptedException {
+        messageBus.subscribeEvent(PoseEvent.class, microServiceA);
+        PoseEvent event1 = new PoseEvent(new Pose(1, 1, 1, 1));
+        PoseEvent event2 = new PoseEvent(new Pose(2, 2, 2, 2));
+        PoseEvent event3 = new PoseEvent(new Pose(3, 3, 3, 3));
+        messageBus.sendEvent(event1);
+        messageBus.sendEvent(event2);
+        messageBus.sendEvent(event3);
+
+        List<Message> batch = new ArrayList<>();
+        assertEquals(2, messageBus.awaitMessages(microServiceA, batch, 2));
+        assertEquals(Arrays.asList(event1, event2), batch);
+        batch.clear();
+        assertEquals(1, messageBus.awaitMessages(microServiceA, batch, 8));
+        assertEquals(Collections.singletonList(event3), batch);
+
+        // messages from the queue and from a channel, still in send order
+        messageBus.enableBroadcastChannel(TickBroadcast.class, 4);
+        messageBus.subscribeBroadcast(TickBroadcast.class, microServiceA);
+        TickBroadcast tick1 = new TickBroadcast(1);
+        TickBroadcast tick2 = new TickBroadcast(2);
+        messageBus.sendBroadcast(tick1);
+        messageBus.sendEvent(event1);
+        messageBus.sendBroadcast(tick2);
+        batch.clear();
+        assertEquals(3, messageBus.awaitMessages(microServiceA, batch, 8));
+        assertEquals(Arrays.asList(tick1, event1, tick2), batch);
+        assertTrue(messageBus.getMessegeQueue(microServiceA).isEmpty());
+
+        messageBus.unregister(microServiceA);
+        assertThrows(IllegalStateException.class, () -> messageBus.awaitMessages(microServiceA, new ArrayList<>(), 1));
+    }
+
+    /**
+     * Precondition:
+     * A micro-service taking batches of up to 8 messages has three pose events
+     * waiting, and terminates from the callback of the first one.
+     *
+     * Postcondition:
+     * The first event is completed, the other two are dropped with the rest of the
+     * batch and the bus keeps none of their futures; the batch they were sent in is
+     * resolved with null for them.
+     */
+    @Test
+    void testDroppedBatchFuturesAreForgotten() throws InterruptedException {
+        MessageBusImpl bus = new MessageBusImpl();
+        CountDownLatch subscribed = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MicroService service = new MicroService("Batch", bus) {
+            @Override
+            protected void initialize() {
+                setBatchSize(8);
+                subscribeEvent(PoseEvent.class, event -> {
+                    complete(event, event.getPose());
+                    terminate();
+                });
+                subscribed.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Thread thread = new Thread(service);
+        thread.start();
+        assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+        List<PoseEvent> events = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            events.add(new PoseEvent(new Pose(i, i, i, i)));
+        }
+        List<Future<Pose>> futures = new ArrayList<>();
+        Future<List<Pose>> all = bus.sendEvents(events, futures);
+        assertEquals(3, bus.getPendingFuturesCount());
+        release.countDown();
+        thread.join(5000);
+
+        assertFalse(thread.isAlive());
+        assertTrue(futures.get(0).isDone());
+        assertFalse(futures.get(1).isDone());
+        assertFalse(futures.get(2).isDone());
+        assertEquals(0, bus.getPendingFuturesCount());
+        assertEquals(Arrays.asList(events.get(0).getPose(), null, null), all.get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Precondition:
+     * `microServiceA` and `microServiceB` handle `PoseEvent`, and a batch of pose
+     * events is sent followed by a batch of detections nobody handles.
+     *
+     * Postcondition:
+     * The batch is spread round-robin in order, each event has its own future, and
+     * the aggregate future is resolved with every result in order once all are
+     * completed. Events nobody received have a null future and a null result.
+     */
+    @Test
+    void testSendEventsBatch() throws InterruptedException {
+        messageBus.subscribeEvent(PoseEvent.class, microServiceA);
+        messageBus.subscribeEvent(PoseEvent.class, microServiceB);
+        List<PoseEvent> events = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            events.add(new PoseEvent(new Pose(i, i, i, i)));
+        }
+        List<Future<Pose>> futures = new ArrayList<>();
+        Future<List<Pose>> all = messageBus.sendEvents(events, futures);
+        assertEquals(4, futures.size());
+        assertEquals(4, messageBus.getPendingFuturesCount());
+        assertEquals(events.get(0), messageBus.awaitMessage(microServiceA));
+        assertEquals(events.get(2), messageBus.awaitMessage(microServiceA));
+        assertEquals(events.get(1), messageBus.awaitMessage(microServiceB));
+        assertEquals(events.get(3), messageBus.awaitMessage(microServiceB));
+
+        for (int i = 3; i >= 0; i--) {
+            messageBus.complete(events.get(i), events.get(i).getPose());
+            assertTrue(futures.get(i).isDone());
+            assertEquals(i == 0, all.isDone());
+        }
+        List<Pose> results = all.get(1, TimeUnit.SECONDS);
+        for (int i = 0; i < 4; i++) {
+            assertSame(events.get(i).getPose(), results.get(i));
+        }
+        assertEquals(0, messageBus.getPendingFuturesCount());
+
+        // without per-event futures, only the batch is resolved
+        Future<List<Pose>> batch = messageBus.sendEvents(events.subList(0, 2));
+        messageBus.complete(events.get(1), events.get(1).getPose());
+        assertFalse(batch.isDone());
+        messageBus.complete(events.get(0), events.get(0).getPose());
+        assertEquals(Arrays.asList(events.get(0).getPose(), events.get(1).getPose()), batch.get(1, TimeUnit.SECONDS));
+        messageBus.awaitMessage(microServiceA);
+        messageBus.awaitMessage(microServiceB);
+
+        List<DetectObjectsEvent> unhandled = Arrays.asList(
+                new DetectObjectsEvent(Collections.emptyList(), 1), new DetectObjectsEvent(Collections.emptyList(), 2));
+        List<Future<Boolean>> unhandledFutures = new ArrayList<>();
+        Future<List<Boolean>> none = messageBus.sendEvents(unhandled, unhandledFutures);
+        assertEquals(Arrays.asList(null, null), unhandledFutures);
+        assertEquals(Arrays.asList(null, null), none.get(1, TimeUnit.SECONDS));
+        assertEquals(0, messageBus.getPendingFuturesCount());
+    }
+
+    /**
+     * Precondition:
+     * Batches of pose events are sent to a mailbox of two that drops its oldest
+     * message, to a micro-service that then unregisters, and to one that never
+     * handles them while the futures expire.
+     *
+     * Postcondition:
+     * Each batch is resolved anyway, with null for the events that were dropped,
+     * left in the mailbox or swept, and the results of the others.
+     */
+    @Test
+    void testBatchResolvesWhenEventsAreDropped() throws InterruptedException {
+        List<PoseEvent> events = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            events.add(new PoseEvent(new Pose(i, i, i, i)));
+        }
+        messageBus.setMailboxCapacity(microServiceA, 2, BackpressurePolicy.DROP_OLDEST);
+        messageBus.subscribeEvent(PoseEvent.class, microServiceA);
+        Future<List<Pose>> dropped = messageBus.sendEvents(events);
+        messageBus.complete(events.get(1), events.get(1).getPose());
+        messageBus.complete(events.get(2), events.get(2).getPose());
+        assertEquals(Arrays.asList(null, events.get(1).getPose(), events.get(2).getPose()),
+                dropped.get(1, TimeUnit.SECONDS));
+        messageBus.unregister(microServiceA);
+
+        messageBus.subscribeEvent(PoseEvent.class, microServiceB);
+        Future<List<Pose>> unregistered = messageBus.sendEvents(events);
+        assertFalse(unregistered.isDone());
+        messageBus.unregister(microServiceB);
+        assertEquals(Arrays.asList(null, null, null), unregistered.get(1, TimeUnit.SECONDS));
+
+        messageBus.subscribeEvent(PoseEvent.class, microServiceC);
+        messageBus.setFutureExpiry(10, TimeUnit.MILLISECONDS);
+        try {
+            Future<List<Pose>> swept = messageBus.sendEvents(events);
+            Thread.sleep(50);
+            assertEquals(0, messageBus.getPendingFuturesCount());
+            assertEquals(Arrays.asList(null, null, null), swept.get(1, TimeUnit.SECONDS));
+        } finally {
+            messageBus.setFutureExpiry(60, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Precondition:
+     * A micro-service sends a batch of pose events, one of a type nobody handles in
+     * the middle, from its tick callback and asks for the future of each event.
+     *
+     * Postcondition:
+     * It gets a future per event, null for the unhandled one, each resolved with
+     * the result of its event, and the batch future holds every result in order.
+     */
+    @Test
+    void testMicroServiceSendsEventsWithTheirFutures() throws InterruptedException {
+        MessageBusImpl bus = new MessageBusImpl();
+        List<Event<Pose>> events = Arrays.asList(new PoseEvent(new Pose(1, 1, 1, 1)),
+                new UnhandledEvent(), new PoseEvent(new Pose(2, 2, 2, 2)));
+        List<Future<Pose>> futures = new ArrayList<>();
+        List<Future<List<Pose>>> all = new ArrayList<>();
+        MicroService handler = new MicroService("Handler", bus) {
+            @Override
+            protected void initialize() {
+                subscribeEvent(PoseEvent.class, event -> complete(event, event.getPose()));
+                subscribeBroadcast(DoneBroadcast.class, done -> terminate());
+            }
+        };
+        MicroService sender = new MicroService("Sender", bus) {
+            @Override
+            protected void initialize() {
+                subscribeBroadcast(TickBroadcast.class, tick -> all.add(sendEvents(events, futures)));
+                subscribeBroadcast(DoneBroadcast.class, done -> terminate());
+            }
+        };
+        Thread handlerThread = new Thread(handler);
+        Thread senderThread = new Thread(sender);
+        handlerThread.start();
+        senderThread.start();
+        bus.awaitReady(2);
+        bus.sendAcknowledgedBroadcast(new TickBroadcast(1), null).get(5, TimeUnit.SECONDS);
+
+        assertEquals(3, futures.size());
+        assertNull(futures.get(1));
+        assertSame(((PoseEvent) events.get(0)).getPose(), futures.get(0).get(5, TimeUnit.SECONDS));
+        assertSame(((PoseEvent) events.get(2)).getPose(), futures.get(2).get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(((PoseEvent) events.get(0)).getPose(), null, ((PoseEvent) events.get(2)).getPose()),
+                all.get(0).get(5, TimeUnit.SECONDS));
+        assertEquals(0, bus.getPendingFuturesCount());
+
+        bus.sendBroadcast(new DoneBroadcast());
+        handlerThread.join(5000);
+        senderThread.join(5000);
+        assertFalse(handlerThread.isAlive());
+        assertFalse(senderThread.isAlive());
+    }
+
+    /**
+     * Precondition:
+     * `microServiceA` handles detections and `DeadlineEvent`s. Detections with and
+     * without a tick deadline, and an event whose time deadline already passed, wait
+     * in its mailbox while the bus clock moves past the tick deadline.
+     *
+     * Postcondition:
+     * Expired events are dropped when taken, one at a time or in a batch, their
+     * futures are resolved as expired with null, and they are counted per type.
+     * The others are received as usual.
+     */
+    @Test
+    void testExpiredEventsAreDropped() throws InterruptedException {
+        messageBus.subscribeEvent(DetectObjectsEvent.class, microServiceA);
+        messageBus.subscribeEvent(DeadlineEvent.class, microServiceA);
+        messageBus.advanceTick(1);
+        DetectObjectsEvent late = new DetectObjectsEvent(Collections.emptyList(), 1, 2);
+        DetectObjectsEvent onTime = new DetectObjectsEvent(Collections.emptyList(), 1, 3);
+        DetectObjectsEvent noDeadline = new DetectObjectsEvent(Collections.emptyList(), 1);
+        Future<Boolean> lateFuture = messageBus.sendEvent(late);
+        messageBus.sendEvent(onTime);
+        Future<String> timedOut = messageBus.sendEvent(new DeadlineEvent(System.nanoTime() - 1));
+        messageBus.sendEvent(noDeadline);
+        messageBus.advanceTick(3);
+        messageBus.advanceTick(2); // the clock never goes back
+        assertEquals(3, messageBus.getCurrentTick());
+
+        assertEquals(onTime, messageBus.awaitMessage(microServiceA));
+        assertTrue(lateFuture.isDone());
+        assertTrue(lateFuture.isExpired());
+        assertNull(lateFuture.get());
+        List<Message> batch = new ArrayList<>();
+        assertEquals(1, messageBus.awaitMessages(microServiceA, batch, 8));
+        assertEquals(Collections.singletonList(noDeadline), batch);
+        assertTrue(timedOut.isExpired());
+        assertTrue(messageBus.getMessegeQueue(microServiceA).isEmpty());
+
+        // completed futures are not expired
+        Future<String> handled = messageBus.sendEvent(new DeadlineEvent(ExpiringEvent.NO_DEADLINE_NANOS));
+        messageBus.complete((DeadlineEvent) messageBus.awaitMessage(microServiceA), "done");
+        assertEquals("done", handled.get());
+        assertFalse(handled.isExpired());
+
+        Map<String, MetricsSnapshot.TypeMetrics> types = new HashMap<>();
+        for (MetricsSnapshot.TypeMetrics type : messageBus.getMetrics().getMessageTypes()) {
+            types.put(type.getType(), type);
+        }
+        assertEquals(1, types.get("DetectObjectsEvent").getExpired());
+        assertEquals(2, types.get("DetectObjectsEvent").getReceived());
+        assertEquals(1, types.get("DeadlineEvent").getExpired());
+    }
+
+    /**
+     * Precondition:
+     * Three micro-services handling `PoseEvent` are run by an `ActorScheduler` with
+     * two workers, and terminate on `TerminatedBroadcast`.
+     *
+     * Postcondition:
+     * Every service handles the events it was sent in send order, never on two
+     * workers at once, and all of them terminate and are unregistered.
+     */
+    @Test
+    void testActorSchedulerKeepsOrder() throws InterruptedException {
+        int services = 3;
+        int events = 3000;
+        List<List<Integer>> received = new ArrayList<>();
+        AtomicInteger concurrentRuns = new AtomicInteger();
+        CountDownLatch subscribed = new CountDownLatch(services);
+        ActorScheduler scheduler = new ActorScheduler(2, 4);
+        for (int s = 0; s < services; s++) {
+            List<Integer> xs = new ArrayList<>();
+            received.add(xs);
+            scheduler.start(new MicroService("Actor" + s) {
+                private final AtomicInteger active = new AtomicInteger();
+
+                @Override
+                protected void initialize() {
+                    subscribeEvent(PoseEvent.class, event -> {
+                        if (active.incrementAndGet() > 1) {
+                            concurrentRuns.incrementAndGet();
+                        }
+                        xs.add(event.getPose().getTime());
+                        active.decrementAndGet();
+                    });
+                    subscribeBroadcast(TerminatedBroadcast.class, b -> terminate());
+                    subscribed.countDown();
+                }
+            });
+        }
+        subscribed.await();
+        for (int i = 0; i < events; i++) {
+            messageBus.sendEvent(new PoseEvent(new Pose(i, 0, 0, 0)));
+        }
+        messageBus.sendBroadcast(new TerminatedBroadcast());
+        scheduler.awaitTermination();
+        scheduler.shutdown();
+
+        int total = 0;
+        for (List<Integer> xs : received) {
+            for (int i = 1; i < xs.size(); i++) {
+                assertTrue(xs.get(i - 1) < xs.get(i));
+            }
+            total += xs.size();
+        }
+        assertEquals(events, total);
+        assertEquals(0, concurrentRuns.get());
+        assertNull(messageBus.sendEvent(new PoseEvent(new Pose(0, 0, 0, 0))));
+    }
     
     /**
      * Precondition:
@@ -141,6 +903,382 @@ class MessageBusImplTest {
         messageBus.unregister(microServiceA);
         assertThrows(IllegalStateException.class, () -> messageBus.awaitMessage(microServiceA));
     }
+
+    /**
+     * Precondition:
+     * `microServiceA` handles `PoseEvent` and `microServiceA` and `microServiceB`
+     * receive `CrashedBroadcast`.
+     *
+     * Postcondition:
+     * The metrics count every sent and received message per type and per service,
+     * whether a micro-service or another caller sent it, track the current and
+     * maximal mailbox depth, and record how long each message waited.
+     */
+    @Test
+    void testMetrics() throws InterruptedException {
+        messageBus.subscribeEvent(PoseEvent.class, microServiceA);
+        messageBus.subscribeBroadcast(CrashedBroadcast.class, microServiceA);
+        messageBus.subscribeBroadcast(CrashedBroadcast.class, microServiceB);
+        for (int i = 0; i < 2; i++) {
+            messageBus.sendEvent(new PoseEvent(new Pose(i, i, i, i)));
+        }
+        Thread sender = new Thread(new MicroService("Sender") {
+            @Override
+            protected void initialize() {
+                sendEvent(new PoseEvent(new Pose(2, 2, 2, 2)));
+                sendBroadcast(new CrashedBroadcast("AAA"));
+                terminate();
+            }
+        });
+        sender.start();
+        sender.join(5000);
+        assertFalse(sender.isAlive());
+        for (int i = 0; i < 4; i++) {
+            messageBus.awaitMessage(microServiceA);
+        }
+
+        MetricsSnapshot snapshot = messageBus.getMetrics();
+        Map<String, MetricsSnapshot.TypeMetrics> types = new HashMap<>();
+        for (MetricsSnapshot.TypeMetrics type : snapshot.getMessageTypes()) {
+            types.put(type.getType(), type);
+        }
+        assertEquals(3, types.get("PoseEvent").getSent());
+        assertEquals(3, types.get("PoseEvent").getReceived());
+        assertEquals(3, types.get("PoseEvent").getQueueLatency().getCount());
+        assertEquals(1, types.get("CrashedBroadcast").getSent());
+        assertEquals(1, types.get("CrashedBroadcast").getReceived()); // microServiceB did not take it yet
+
+        Map<String, MetricsSnapshot.ServiceMetrics> services = new HashMap<>();
+        for (MetricsSnapshot.ServiceMetrics service : snapshot.getServices()) {
+            services.put(service.getService(), service);
+        }
+        assertEquals(2, services.get("Sender").getSent());
+        assertEquals(0, services.get("Sender").getReceived());
+        MetricsSnapshot.ServiceMetrics a = services.get("MicroServiceA");
+        assertEquals(0, a.getSent());
+        assertEquals(4, a.getReceived());
+        assertEquals(4, a.getQueueLatency().getCount());
+        assertEquals(0, a.getDepth());
+        assertEquals(4, a.getMaxDepth());
+        assertTrue(a.getQueueLatency().getMaxNanos() >= a.getQueueLatency().getP50Nanos());
+        assertEquals(1, services.get("MicroServiceB").getDepth());
+    }
+
+    /**
+     * Precondition:
+     * Many microservices are registered and subscribed to events and broadcasts.
+     *
+     * Postcondition:
+     * When all of them unregister at the same time, every subscription is removed:
+     * no event finds a receiver, and only the services that stay registered get
+     * broadcasts.
+     */
+    @Test
+    void testConcurrentUnregister() throws InterruptedException {
+        int count = 64;
+        List<MicroService> services = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            MicroService m = new MicroService("Unregistering" + i) {
+                @Override
+                protected void initialize() {
+                }
+            };
+            messageBus.register(m);
+            messageBus.subscribeEvent(PoseEvent.class, m);
+            messageBus.subscribeBroadcast(CrashedBroadcast.class, m);
+            messageBus.subscribeBroadcast(TerminatedBroadcast.class, m);
+            services.add(m);
+        }
+        messageBus.subscribeBroadcast(CrashedBroadcast.class, microServiceA);
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (MicroService m : services) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                messageBus.unregister(m);
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertNull(messageBus.sendEvent(new PoseEvent(new Pose(1, 1, 1, 1))));
+        CrashedBroadcast crashed = new CrashedBroadcast("AAA");
+        messageBus.sendBroadcast(crashed);
+        assertEquals(crashed, messageBus.awaitMessage(microServiceA));
+        for (MicroService m : services) {
+            assertNull(messageBus.getMessegeQueue(m));
+        }
+    }
+
+    /**
+     * Precondition:
+     * A micro-service has a mailbox full of `PoseEvent`s and a `TerminatedBroadcast`
+     * when a `CrashedBroadcast` is sent to it; another one is in the middle of a
+     * batch of events when it is sent a `CrashedBroadcast`.
+     *
+     * Postcondition:
+     * The crash is taken before the queued messages and is not dropped by the full
+     * mailbox, while the termination keeps its place behind the events it follows.
+     * The busy service terminates right after the callback it is running.
+     */
+    @Test
+    void testControlMessagesGoFirst() throws InterruptedException {
+        messageBus.setMailboxCapacity(microServiceA, 3, BackpressurePolicy.DROP_NEWEST);
+        messageBus.subscribeEvent(PoseEvent.class, microServiceA);
+        messageBus.subscribeBroadcast(CrashedBroadcast.class, microServiceA);
+        messageBus.subscribeBroadcast(TerminatedBroadcast.class, microServiceA);
+        PoseEvent event1 = new PoseEvent(new Pose(1, 1, 1, 1));
+        PoseEvent event2 = new PoseEvent(new Pose(2, 2, 2, 2));
+        messageBus.sendEvent(event1);
+        messageBus.sendEvent(event2);
+        CrashedBroadcast crashed = new CrashedBroadcast("AAA");
+        TerminatedBroadcast terminated = new TerminatedBroadcast();
+        messageBus.sendBroadcast(terminated);
+        messageBus.sendBroadcast(crashed);
+        assertEquals(crashed, messageBus.awaitMessage(microServiceA));
+        List<Message> batch = new ArrayList<>();
+        assertEquals(3, messageBus.awaitMessages(microServiceA, batch, 8));
+        assertEquals(Arrays.asList(event1, event2, terminated), batch);
+        assertThrows(IllegalArgumentException.class, () -> messageBus.enableBroadcastChannel(CrashedBroadcast.class, 4));
+
+        int events = 100;
+        AtomicInteger handled = new AtomicInteger();
+        CountDownLatch subscribed = new CountDownLatch(1);
+        CountDownLatch busy = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MicroService worker = new MicroService("Busy") {
+            @Override
+            protected void initialize() {
+                setBatchSize(16);
+                subscribeEvent(PoseEvent.class, event -> {
+                    handled.incrementAndGet();
+                    busy.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                subscribeBroadcast(CrashedBroadcast.class, b -> terminate());
+                subscribed.countDown();
+            }
+        };
+        messageBus.unregister(microServiceA);
+        Thread thread = new Thread(worker);
+        thread.start();
+        subscribed.await();
+        for (int i = 0; i < events; i++) {
+            messageBus.sendEvent(new PoseEvent(new Pose(i, 0, 0, 0)));
+        }
+        busy.await();
+        messageBus.sendBroadcast(new CrashedBroadcast("BBB"));
+        release.countDown();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertEquals(1, handled.get());
+    }
+
+    /**
+     * Precondition:
+     * Ticks go through a broadcast channel. A relay service answers every tick with a
+     * `PoseEvent`, handled by a service that waits for a latch; `microServiceB` is
+     * also subscribed to ticks but never takes them.
+     *
+     * Postcondition:
+     * The future of an acknowledged tick is resolved only once the event the relay
+     * sent was handled and `microServiceB` unregistered, and the sender is not
+     * waited for.
+     */
+    @Test
+    void testAcknowledgedBroadcastWaitsForCascade() throws InterruptedException {
+        messageBus.enableBroadcastChannel(TickBroadcast.class, 4);
+        CountDownLatch subscribed = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        MicroService relay = new MicroService("Relay") {
+            @Override
+            protected void initialize() {
+                subscribeBroadcast(TickBroadcast.class, tick -> {
+                    sendEvent(new PoseEvent(new Pose(tick.getTick(), 0, 0, 0)));
+                    terminate();
+                });
+                subscribed.countDown();
+            }
+        };
+        MicroService handler = new MicroService("Handler") {
+            @Override
+            protected void initialize() {
+                subscribeEvent(PoseEvent.class, event -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    handled.add(event.getPose().getTime());
+                    terminate();
+                });
+                subscribed.countDown();
+            }
+        };
+        Thread relayThread = new Thread(relay);
+        Thread handlerThread = new Thread(handler);
+        relayThread.start();
+        handlerThread.start();
+        subscribed.await();
+        messageBus.subscribeBroadcast(TickBroadcast.class, microServiceA);
+        messageBus.subscribeBroadcast(TickBroadcast.class, microServiceB);
+
+        TickBroadcast tick = new TickBroadcast(7);
+        Future<Void> done = messageBus.sendAcknowledgedBroadcast(tick, microServiceA);
+        relayThread.join(5000);
+        assertNull(done.get(50, TimeUnit.MILLISECONDS));
+        assertFalse(done.isDone());
+        release.countDown();
+        handlerThread.join(5000);
+        assertTrue(handled.contains(7));
+        assertFalse(done.isDone()); // microServiceB did not take the tick yet
+        messageBus.unregister(microServiceB);
+        assertTrue(done.isDone());
+        assertEquals(tick, messageBus.awaitMessage(microServiceA)); // delivered, but not waited for
+    }
+
+    /**
+     * Precondition:
+     * A micro-service is created on a bus of its own, next to the shared bus where
+     * `microServiceA` is subscribed to the same types.
+     *
+     * Postcondition:
+     * Each bus only delivers to its own subscribers: messages sent on one bus are
+     * never seen on the other.
+     */
+    @Test
+    void testIsolatedBuses() throws InterruptedException {
+        MessageBusImpl otherBus = new MessageBusImpl();
+        List<Message> received = new ArrayList<>();
+        CountDownLatch subscribed = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        MicroService isolated = new MicroService("Isolated", otherBus) {
+            @Override
+            protected void initialize() {
+                subscribeEvent(PoseEvent.class, event -> {
+                    received.add(event);
+                    complete(event, event.getPose());
+                });
+                subscribeBroadcast(CrashedBroadcast.class, b -> {
+                    received.add(b);
+                    terminate();
+                });
+                subscribed.countDown();
+            }
+        };
+        messageBus.subscribeEvent(PoseEvent.class, microServiceA);
+        messageBus.subscribeBroadcast(CrashedBroadcast.class, microServiceA);
+        Thread thread = new Thread(() -> {
+            isolated.run();
+            done.countDown();
+        });
+        thread.start();
+        subscribed.await();
+
+        PoseEvent shared = new PoseEvent(new Pose(1, 1, 1, 1));
+        messageBus.sendEvent(shared);
+        PoseEvent own = new PoseEvent(new Pose(2, 2, 2, 2));
+        Future<Pose> future = otherBus.sendEvent(own);
+        assertEquals(own.getPose(), future.get(5, TimeUnit.SECONDS));
+        CrashedBroadcast crashed = new CrashedBroadcast("AAA");
+        otherBus.sendBroadcast(crashed);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(shared, messageBus.awaitMessage(microServiceA));
+        assertTrue(messageBus.getMessegeQueue(microServiceA).isEmpty());
+        assertEquals(Arrays.asList(own, crashed), received);
+        assertNull(messageBus.getMessegeQueue(isolated));
+    }
+
+    /**
+     * Precondition:
+     * Two shared-memory buses are mapped over the same directory, as two processes
+     * would, bridging pose, detection and tracking events and ticks. A micro-service
+     * on the second bus handles poses, detections and ticks.
+     *
+     * Postcondition:
+     * A pose sent on the first bus is handled on the second and its future is
+     * resolved on the first; a detection past its deadline on the second bus is
+     * expired on the first; an event nobody handles resolves with null; a tick
+     * reaches the subscribers of both buses.
+     */
+    @Test
+    void testSharedMemoryBridge(@TempDir Path directory) throws Exception {
+        List<Class<? extends Message>> bridged = Arrays.asList(PoseEvent.class, DetectObjectsEvent.class,
+                TrackedObjectsEvent.class, TickBroadcast.class);
+        try (SharedMemoryMessageBus first = new SharedMemoryMessageBus(directory, "first", "second", new BinaryMessageCodec(), bridged, 4096);
+             SharedMemoryMessageBus second = new SharedMemoryMessageBus(directory, "second", "first", new BinaryMessageCodec(), bridged, 4096)) {
+            List<Integer> ticks = new ArrayList<>();
+            CountDownLatch subscribed = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(1);
+            MicroService remote = new MicroService("Remote", second) {
+                @Override
+                protected void initialize() {
+                    subscribeEvent(PoseEvent.class, event -> complete(event, event.getPose()));
+                    subscribeEvent(DetectObjectsEvent.class, event -> complete(event, true));
+                    subscribeBroadcast(TickBroadcast.class, tick -> {
+                        ticks.add(tick.getTick());
+                        terminate();
+                    });
+                    subscribed.countDown();
+                }
+            };
+            Thread thread = new Thread(() -> {
+                remote.run();
+                done.countDown();
+            });
+            thread.start();
+            subscribed.await();
+            first.register(microServiceA);
+            first.subscribeBroadcast(TickBroadcast.class, microServiceA);
+
+            Pose pose = new Pose(3, 1.5, -2.5, 90);
+            Future<Pose> future = first.sendEvent(new PoseEvent(pose));
+            Pose handled = future.get(5, TimeUnit.SECONDS);
+            assertNotNull(handled);
+            assertEquals(pose.getTime(), handled.getTime());
+            assertEquals(pose.getX(), handled.getX());
+            assertEquals(pose.getY(), handled.getY());
+            assertEquals(pose.getYaw(), handled.getYaw());
+
+            // the deadline crosses over and is checked against the peer's clock
+            second.advanceTick(5);
+            List<DetectedObject> wall = Collections.singletonList(new DetectedObject("Wall_1", "Wall"));
+            Future<Boolean> late = first.sendEvent(new DetectObjectsEvent(wall, 3, 4));
+            Future<Boolean> onTime = first.sendEvent(new DetectObjectsEvent(wall, 3, 5));
+            assertEquals(Boolean.TRUE, onTime.get(5, TimeUnit.SECONDS));
+            assertTrue(late.isDone());
+            assertTrue(late.isExpired());
+            assertFalse(onTime.isExpired());
+
+            Future<Void> unhandled = first.sendEvent(new TrackedObjectsEvent(new ArrayList<>()));
+            assertNotNull(unhandled);
+            assertNull(unhandled.get(5, TimeUnit.SECONDS));
+            assertTrue(unhandled.isDone());
+            assertFalse(unhandled.isExpired());
+
+            first.sendBroadcast(new TickBroadcast(4));
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList(4), ticks);
+            assertEquals(4, ((TickBroadcast) first.awaitMessage(microServiceA)).getTick());
+            first.unregister(microServiceA);
+        }
+    }
+
     /**
      * Precondition:
      * A singleton instance of `MessageBusImpl` has been created.
@@ -201,4 +1339,329 @@ class MessageBusImplTest {
         assertEquals(event1, messageBus.awaitMessage(microServiceB));
         assertEquals(event2, messageBus.awaitMessage(microServiceB));
     }
+
+    /**
+     * Precondition:
+     * A micro-service is started whose initialize() is held back before it subscribes.
+     *
+     * Postcondition:
+     * awaitReady only returns once initialize() returned, and a broadcast sent then
+     * reaches the micro-service.
+     */
+    @Test
+    void testAwaitReadyWaitsForInitialize() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        MicroService late = new MicroService("Late") {
+            @Override
+            protected void initialize() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                subscribeBroadcast(DoneBroadcast.class, done -> terminate());
+            }
+        };
+        Thread service = new Thread(late);
+        Thread waiter = new Thread(() -> {
+            try {
+                messageBus.awaitReady(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        service.start();
+        waiter.start();
+        waiter.join(100);
+        assertTrue(waiter.isAlive());
+        release.countDown();
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        messageBus.sendBroadcast(new DoneBroadcast());
+        service.join(5000);
+        assertFalse(service.isAlive());
+    }
+
+    /**
+     * Precondition:
+     * Two micro-services read `TickBroadcast` through a small channel and throw from
+     * their tick callback: one is run by an `ActorScheduler`, one on its own thread.
+     *
+     * Postcondition:
+     * Both are unregistered when they fail, so the scheduler sees them end and
+     * later ticks are not held back by their cursors. The scheduler reports the
+     * failure once to the uncaught exception handler, as the thread's death does,
+     * and its worker survives it.
+     */
+    @Test
+    void testThrowingServiceIsUnregistered() throws InterruptedException {
+        messageBus.enableBroadcastChannel(TickBroadcast.class, 2);
+        CountDownLatch subscribed = new CountDownLatch(2);
+        MicroService[] failing = new MicroService[2];
+        for (int i = 0; i < failing.length; i++) {
+            failing[i] = new MicroService("Failing" + i) {
+                @Override
+                protected void initialize() {
+                    subscribeBroadcast(TickBroadcast.class, tick -> {
+                        throw new IllegalStateException("callback failed on purpose");
+                    });
+                    subscribed.countDown();
+                }
+            };
+        }
+        List<Thread> reportedOn = Collections.synchronizedList(new ArrayList<>());
+        List<Throwable> reported = Collections.synchronizedList(new ArrayList<>());
+        Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((t, e) -> {
+            reportedOn.add(t);
+            reported.add(e);
+        });
+        ActorScheduler scheduler = new ActorScheduler(1, 4);
+        try {
+            scheduler.start(failing[0]);
+            Thread thread = new Thread(failing[1]);
+            thread.setUncaughtExceptionHandler((t, e) -> { });
+            thread.start();
+            subscribed.await();
+            Thread sender = new Thread(() -> {
+                for (int i = 1; i <= 10; i++) {
+                    messageBus.sendBroadcast(new TickBroadcast(i));
+                }
+            });
+            sender.start();
+            sender.join(5000);
+            assertFalse(sender.isAlive());
+            scheduler.awaitTermination();
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+            // the only worker runs the next service, a worker the failure killed is replaced
+            Thread[] next = new Thread[1];
+            CountDownLatch ran = new CountDownLatch(1);
+            scheduler.start(new MicroService("Next") {
+                @Override
+                protected void initialize() {
+                    next[0] = Thread.currentThread();
+                    ran.countDown();
+                    terminate();
+                }
+            });
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+            assertEquals(1, reported.size());
+            assertEquals("callback failed on purpose", reported.get(0).getMessage());
+            assertSame(reportedOn.get(0), next[0], "the worker died of the failure");
+        } finally {
+            scheduler.shutdown();
+            Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+        }
+        for (MicroService m : failing) {
+            assertNull(messageBus.getMessegeQueue(m));
+        }
+    }
+
+    /**
+     * Precondition:
+     * A ring buffer file is written, closed and mapped again, as a process that
+     * starts after its peer would.
+     *
+     * Postcondition:
+     * The records left in the file are read back in order, across the end of the
+     * buffer, and mapping it with another capacity fails.
+     */
+    @Test
+    void testRingBufferReopensExistingFile(@TempDir Path directory) throws IOException {
+        Path path = directory.resolve("reopened.ring");
+        int next = 0;
+        int read = 0;
+        for (int round = 0; round < 20; round++) {
+            try (MappedRingBuffer writer = MappedRingBuffer.open(path, 256)) {
+                for (int i = 0; i < 3; i++) {
+                    byte[] record = ("record-" + next).getBytes(StandardCharsets.UTF_8);
+                    assertTrue(writer.offer(record, record.length));
+                    next++;
+                }
+            }
+            try (MappedRingBuffer reader = MappedRingBuffer.open(path, 256)) {
+                for (byte[] record = reader.poll(); record != null; record = reader.poll()) {
+                    assertEquals("record-" + read, new String(record, StandardCharsets.UTF_8));
+                    read++;
+                }
+                assertTrue(reader.isEmpty());
+            }
+        }
+        assertEquals(next, read);
+        assertThrows(IOException.class, () -> MappedRingBuffer.open(path, 512));
+    }
+
+    /**
+     * Precondition:
+     * A pose event is bridged to a peer whose only receiver unregisters before
+     * handling it, and another is written to a ring nobody reads.
+     *
+     * Postcondition:
+     * The first is answered by the peer and resolved with null; the second is
+     * expired by the sender once the future expiry time passed.
+     */
+    @Test
+    void testSharedMemoryBridgeAnswersDroppedEvents(@TempDir Path directory) throws Exception {
+        List<Class<? extends Message>> bridged = Collections.singletonList(PoseEvent.class);
+        try (SharedMemoryMessageBus first = new SharedMemoryMessageBus(directory, "first", "second", new BinaryMessageCodec(), bridged, 4096);
+             SharedMemoryMessageBus second = new SharedMemoryMessageBus(directory, "second", "first", new BinaryMessageCodec(), bridged, 4096);
+             SharedMemoryMessageBus lonely = new SharedMemoryMessageBus(directory, "lonely", "nobody", new BinaryMessageCodec(), bridged, 4096)) {
+            second.register(microServiceA);
+            second.subscribeEvent(PoseEvent.class, microServiceA);
+            Future<Pose> dropped = first.sendEvent(new PoseEvent(new Pose(1, 1, 1, 1)));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (second.getMessegeQueue(microServiceA).isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            second.unregister(microServiceA);
+            assertNull(dropped.get(5, TimeUnit.SECONDS));
+            assertTrue(dropped.isDone());
+            assertFalse(dropped.isExpired());
+
+            lonely.setFutureExpiry(50, TimeUnit.MILLISECONDS);
+            Future<Pose> unanswered = lonely.sendEvent(new PoseEvent(new Pose(2, 2, 2, 2)));
+            assertNull(unanswered.get(5, TimeUnit.SECONDS));
+            assertTrue(unanswered.isExpired());
+        }
+    }
+
+    /**
+     * Precondition:
+     * A second JVM maps a shared-memory bus over the same directory and runs a
+     * micro-service that handles poses and terminates on a tick.
+     *
+     * Postcondition:
+     * A pose sent from this process is handled by the other one and its future is
+     * resolved here; the tick ends the other process.
+     */
+    @Test
+    void testSharedMemoryBridgeAcrossProcesses(@TempDir Path directory) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process peer = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                BridgePeer.class.getName(), directory.toString())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try (SharedMemoryMessageBus bus = new SharedMemoryMessageBus(directory, "parent", "child",
+                new BinaryMessageCodec(), BridgePeer.BRIDGED, 4096)) {
+            BufferedReader output = new BufferedReader(new InputStreamReader(peer.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("ready", output.readLine());
+
+            Pose pose = new Pose(7, 0.5, -1.25, 45);
+            Pose handled = bus.sendEvent(new PoseEvent(pose)).get(10, TimeUnit.SECONDS);
+            assertNotNull(handled);
+            assertEquals(pose.getTime(), handled.getTime());
+            assertEquals(pose.getYaw(), handled.getYaw());
+
+            bus.sendBroadcast(new TickBroadcast(8));
+            assertTrue(peer.waitFor(10, TimeUnit.SECONDS));
+            assertEquals(0, peer.exitValue());
+        } finally {
+            peer.destroyForcibly();
+        }
+    }
+
+    /**
+     * Precondition:
+     * A micro-service subscribes callbacks for a broadcast type and for a subclass of
+     * it; the bus also routes to it a type it has no callback for, and it subscribes
+     * to a type first seen after its callback table was built from a tick callback.
+     *
+     * Postcondition:
+     * Each message runs the callback of its exact class, the subclass never reaches
+     * the supertype's callback, the type without a callback is received and ignored,
+     * and the late type grows the table and is handled.
+     */
+    @Test
+    void testCallbackDispatchByMessageType() throws InterruptedException {
+        MessageBusImpl bus = new MessageBusImpl();
+        List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        MicroService service = new MicroService("Dispatch", bus) {
+            @Override
+            protected void initialize() {
+                subscribeBroadcast(ParentBroadcast.class, parent -> handled.add("parent"));
+                subscribeBroadcast(ChildBroadcast.class, child -> handled.add("child"));
+                subscribeBroadcast(TickBroadcast.class, tick ->
+                        subscribeBroadcast(LateBroadcast.class, late -> handled.add("late")));
+                subscribeBroadcast(DoneBroadcast.class, done -> terminate());
+            }
+        };
+        Thread thread = new Thread(service);
+        thread.start();
+        bus.awaitReady(1);
+        bus.subscribeBroadcast(UnhandledBroadcast.class, service);
+
+        bus.sendBroadcast(new ChildBroadcast());
+        bus.sendBroadcast(new ParentBroadcast());
+        bus.sendBroadcast(new UnhandledBroadcast());
+        Future<Void> ticked = bus.sendAcknowledgedBroadcast(new TickBroadcast(1), null);
+        ticked.get(5, TimeUnit.SECONDS);
+        assertTrue(ticked.isDone(), "the tick was not handled"); // get returns null on a timeout too
+        bus.sendBroadcast(new LateBroadcast());
+        bus.sendBroadcast(new DoneBroadcast());
+        thread.join(5000);
+
+        assertFalse(thread.isAlive());
+        assertEquals(Arrays.asList("child", "parent", "late"), handled);
+        assertEquals(6, service.GetNumEventReceived());
+    }
+
+    /**
+     * The other process of {@link #testSharedMemoryBridgeAcrossProcesses}: prints
+     * "ready" once its micro-service is subscribed, and exits once it terminated.
+     */
+    static final class BridgePeer {
+        static final List<Class<? extends Message>> BRIDGED = Arrays.asList(PoseEvent.class, TickBroadcast.class);
+
+        public static void main(String[] args) throws Exception {
+            try (SharedMemoryMessageBus bus = new SharedMemoryMessageBus(Paths.get(args[0]), "child", "parent",
+                    new BinaryMessageCodec(), BRIDGED, 4096)) {
+                MicroService remote = new MicroService("Remote", bus) {
+                    @Override
+                    protected void initialize() {
+                        subscribeEvent(PoseEvent.class, event -> complete(event, event.getPose()));
+                        subscribeBroadcast(TickBroadcast.class, tick -> terminate());
+                    }
+                };
+                Thread thread = new Thread(remote);
+                thread.start();
+                bus.awaitReady(1);
+                System.out.println("ready");
+                System.out.flush();
+                thread.join();
+            }
+        }
+    }
+
+    private static class DoneBroadcast implements Broadcast {
+    }
+
+    private static class ParentBroadcast implements Broadcast {
+    }
+
+    private static class ChildBroadcast extends ParentBroadcast {
+    }
+
+    private static class UnhandledBroadcast implements Broadcast {
+    }
+
+    // only used by testCallbackDispatchByMessageType, so its type id is given after the table was built
+    private static class LateBroadcast implements Broadcast {
+    }
+
+    private static class UnhandledEvent implements Event<Pose> {
+    }
+
+    private static class DeadlineEvent implements ExpiringEvent<String> {
+        private final long deadlineNanos;
+
+        DeadlineEvent(long deadlineNanos) {
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public long getDeadlineNanos() {
+            return deadlineNanos;
+        }
+    }
 }
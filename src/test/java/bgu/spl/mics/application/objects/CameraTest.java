@@ -3,12 +3,13 @@ package bgu.spl.mics.application.objects;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 class CameraTest {
     private Camera camera;
@@ -38,7 +39,7 @@ class CameraTest {
         // object at time T should be detected at T + freq
         int tick = 1;
         camera.setToBeSentObjects(tick);
-        ArrayList<DetectedObject> detectedObjects = camera.getDetectedObjectsToSend(tick);
+        List<DetectedObject> detectedObjects = camera.getDetectedObjectsToSend(tick);
         assertEquals(0, detectedObjects.size(), "Detected objects should be empty");
 
         tick = 2;
@@ -71,7 +72,7 @@ class CameraTest {
 
         // Act
         camera.setToBeSentObjects(tick);
-        ArrayList<DetectedObject> detectedObjects = camera.getDetectedObjectsToSend(tick);
+        List<DetectedObject> detectedObjects = camera.getDetectedObjectsToSend(tick);
 
         // Assert
         assertNotNull(detectedObjects, "Detected objects should not be null");
@@ -99,5 +100,36 @@ class CameraTest {
         assertEquals("Camera Disconnected", NameOfErrorObject); 
     }
 
-}
+    /**
+     * Precondition:
+     * The camera has no detections for the ticks it is given.
+     *
+     * Postcondition:
+     * Handling such an idle tick - checking for an error, looking for detections
+     * and for detections to send - allocates nothing on the heap.
+     */
+    @Test
+    void testIdleTickAllocatesNothing() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "Allocation counting is not available");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long threadId = Thread.currentThread().getId();
+
+        int idleTicks = 100_000;
+        idleTicks(idleTicks); // warm up
+        long before = threads.getThreadAllocatedBytes(threadId);
+        idleTicks(idleTicks);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        // a few bytes of slack for the measurement itself, far below one object per tick
+        assertTrue(allocated < 1024, allocated + " bytes allocated for " + idleTicks + " idle ticks");
+    }
 
+    private void idleTicks(int count) {
+        for (int tick = 100; tick < 100 + count; tick++) {
+            assertNull(camera.checkForError(tick));
+            assertEquals(0, camera.setToBeSentObjects(tick));
+            assertTrue(camera.getDetectedObjectsToSend(tick).isEmpty());
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.junit.jupiter.api.Test;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -15,6 +16,7 @@ class FusionSlamTest {
     void setUp() {
         fusionSlam = FusionSlam.getInstance();
         fusionSlam.clearData();
+        LatencyTracer.getInstance().clearData();
 
         // Initialize poses required for transformation
         Pose initialPose = new Pose(1, 0, 0, 0); 
@@ -83,4 +85,37 @@ class FusionSlamTest {
         assertEquals(-0.500000, x, 0.000001); 
         assertEquals(2.500000, y, 0.000001);
     }
+
+    /**
+     * Precondition:
+     * An object detected at time 1 goes through every stage up to FusionSlam,
+     * which updates its landmark once the pose of time 1 is known.
+     *
+     * Postcondition:
+     * The trace of the object reaches the LANDMARK stage, and the report gives
+     * its end-to-end latency in ticks.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    void testLatencyTrace() {
+        LatencyTracer tracer = LatencyTracer.getInstance();
+        TrackedObject trackedObject = new TrackedObject("Wall_1", 1, "Wall", Arrays.asList(new CloudPoint(1.0, 2.0)));
+        tracer.record(LatencyTracer.Stage.DETECTED, "Wall_1", 1, 1);
+        tracer.record(LatencyTracer.Stage.SENT_TO_LIDAR, "Wall_1", 1, 2);
+        tracer.record(LatencyTracer.Stage.LIDAR_RECEIVED, "Wall_1", 1, 2);
+        tracer.recordTracked(LatencyTracer.Stage.SENT_TO_FUSION, Arrays.asList(trackedObject), 3);
+        tracer.advanceTick(3);
+        tracer.recordTracked(LatencyTracer.Stage.FUSION_RECEIVED, Arrays.asList(trackedObject));
+        fusionSlam.updateLandMark(trackedObject);
+
+        List<Map<String, Object>> objects = (List<Map<String, Object>>) tracer.report().get("objects");
+        assertEquals(1, objects.size());
+        Map<String, Object> trace = objects.get(0);
+        assertEquals("Wall_1", trace.get("id"));
+        assertEquals("LANDMARK", trace.get("lastStage"));
+        assertEquals(2, trace.get("totalTicks"));
+        Map<String, Object> steps = (Map<String, Object>) trace.get("steps");
+        assertEquals(5, steps.size());
+        assertEquals(1, ((Map<String, Object>) steps.get("DETECTED->SENT_TO_LIDAR")).get("ticks"));
+    }
 }
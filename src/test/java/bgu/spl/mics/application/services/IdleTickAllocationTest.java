@@ -0,0 +1,115 @@
+package bgu.spl.mics.application.services;
+
+import bgu.spl.mics.Future;
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.application.SimulationContext;
+import bgu.spl.mics.application.messages.TerminatedBroadcast;
+import bgu.spl.mics.application.messages.TickBroadcast;
+import bgu.spl.mics.application.objects.Camera;
+import bgu.spl.mics.application.objects.CloudPoint;
+import bgu.spl.mics.application.objects.GPSIMU;
+import bgu.spl.mics.application.objects.LiDarWorkerTracker;
+import bgu.spl.mics.application.objects.StampedCloudPoints;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class IdleTickAllocationTest {
+    private static final String CAMERA_DATA = "src/test/java/bgu/spl/mics/test_input/camera_data.json";
+    private static final int IDLE_TICKS = 100_000;
+    private static final int FIRST_IDLE_TICK = 100; // after every detection of the camera data
+    // a few bytes of slack for the measurement and the acknowledged tick that ends it,
+    // far below one object per tick
+    private static final long MAX_BYTES = 4096;
+
+    /**
+     * Precondition:
+     * A camera, a LiDAR worker and a pose service run on their own threads, subscribed
+     * to ticks through a broadcast channel, and none of them has data for the ticks
+     * sent. The test thread sends the ticks as the TimeService does: it moves the bus
+     * clock and sends a cached TickBroadcast.
+     *
+     * Postcondition:
+     * A whole idle tick - sending it on the bus, taking it from each mailbox and
+     * running each service's tick callback - allocates nothing on the heap, on the
+     * sending thread or on any service thread.
+     */
+    @Test
+    void testIdleTickAllocatesNothing() throws InterruptedException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "Allocation counting is not available");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        SimulationContext context = new SimulationContext();
+        MessageBusImpl bus = context.getMessageBus();
+        bus.enableBroadcastChannel(TickBroadcast.class, 1024);
+        // one cloud point nobody asks for, so the worker is not done
+        context.getLiDarDataBase().addCloudPoints(new StampedCloudPoints("Wall_1", 1,
+                Collections.singletonList(new CloudPoint(0, 0))));
+        Thread[] services = {
+                new Thread(new CameraService(new Camera(1, 1, "TestCamera", CAMERA_DATA), context)),
+                new Thread(new LiDarService(new LiDarWorkerTracker(1, 1, context.getLiDarDataBase()), context)),
+                new Thread(new PoseService(new GPSIMU(), context))
+        };
+        for (Thread service : services) {
+            service.start();
+        }
+        bus.awaitReady(services.length);
+
+        TickBroadcast[] ticks = new TickBroadcast[FIRST_IDLE_TICK + 2 * IDLE_TICKS + 2];
+        for (int i = 0; i < ticks.length; i++) {
+            ticks[i] = new TickBroadcast(i);
+        }
+        int tick = sendIdleTicks(bus, ticks, FIRST_IDLE_TICK); // warm up
+        awaitHandled(bus, ticks[tick++]);
+
+        long senderBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long[] servicesBefore = new long[services.length];
+        for (int i = 0; i < services.length; i++) {
+            servicesBefore[i] = threads.getThreadAllocatedBytes(services[i].getId());
+        }
+        tick = sendIdleTicks(bus, ticks, tick);
+        long sent = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - senderBefore;
+        awaitHandled(bus, ticks[tick]);
+
+        assertTrue(sent < MAX_BYTES, sent + " bytes allocated sending " + IDLE_TICKS + " idle ticks");
+        for (int i = 0; i < services.length; i++) {
+            long handled = threads.getThreadAllocatedBytes(services[i].getId()) - servicesBefore[i];
+            assertTrue(handled < MAX_BYTES, handled + " bytes allocated by service " + i + " for " + IDLE_TICKS + " idle ticks");
+        }
+
+        bus.sendBroadcast(new TerminatedBroadcast());
+        for (Thread service : services) {
+            service.join(5000);
+            assertFalse(service.isAlive());
+        }
+    }
+
+    /**
+     * @return the tick after the last one sent.
+     */
+    private static int sendIdleTicks(MessageBusImpl bus, TickBroadcast[] ticks, int from) {
+        for (int tick = from; tick < from + IDLE_TICKS; tick++) {
+            bus.advanceTick(tick);
+            bus.sendBroadcast(ticks[tick]);
+        }
+        return from + IDLE_TICKS;
+    }
+
+    /**
+     * Sends {@code tick} acknowledged and waits until every service handled it, and
+     * so every tick sent before it.
+     */
+    private static void awaitHandled(MessageBusImpl bus, TickBroadcast tick) {
+        bus.advanceTick(tick.getTick());
+        Future<Void> handled = bus.sendAcknowledgedBroadcast(tick, null);
+        handled.get(10, TimeUnit.SECONDS);
+        assertTrue(handled.isDone(), "tick " + tick.getTick() + " was not handled");
+    }
+}
@@ -0,0 +1,159 @@
+package bgu.spl.mics.application.services;
+
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.application.ClockMode;
+import bgu.spl.mics.application.MissedTickPolicy;
+import bgu.spl.mics.application.SimulationContext;
+import bgu.spl.mics.application.messages.TerminatedBroadcast;
+import bgu.spl.mics.application.messages.TickBroadcast;
+import bgu.spl.mics.application.objects.StatisticalFolder;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimeServiceTest {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int DURATION = 12;
+    private static final int SLOW_TICK = 3;
+    private static final long SLOW_MILLIS = 250;
+
+    /**
+     * Precondition:
+     * A real-time TimeService with 50 ms ticks and the catch-up policy; ticks go
+     * through a channel of one slot, so the TimeService cannot send a tick before a
+     * subscriber read the previous one, and that subscriber spends 250 ms handling
+     * tick 3.
+     *
+     * Postcondition:
+     * The ticks that missed their deadline go out back to back, so the run keeps
+     * its length of a tick per tick; no deadline is skipped and the late tick shows
+     * up as the maximal jitter.
+     */
+    @Test
+    void testCatchUpKeepsTheGrid() throws InterruptedException {
+        SimulationContext context = new SimulationContext();
+        long[] arrivals = runWithSlowSubscriber(context, MissedTickPolicy.CATCH_UP);
+
+        long span = arrivals[DURATION] - arrivals[2];
+        assertTrue(span < (DURATION - 2) * TICK_NANOS + TICK_NANOS, "run took " + span + " ns");
+        assertTrue(arrivals[SLOW_TICK + 4] - arrivals[SLOW_TICK + 2] < TICK_NANOS, "late ticks were spread out");
+
+        Map<String, Object> jitter = context.getStatisticalFolder().getTickJitter();
+        assertEquals(DURATION - 2, jitter.get("count"));
+        assertEquals(0L, jitter.get("skippedDeadlines"));
+        assertTrue((Long) jitter.get("maxNanos") >= TimeUnit.MILLISECONDS.toNanos(SLOW_MILLIS) - 3 * TICK_NANOS);
+        assertTrue((Long) jitter.get("p50Nanos") < TICK_NANOS);
+    }
+
+    /**
+     * Precondition:
+     * The same run as {@link #testCatchUpKeepsTheGrid()} with the skip policy.
+     *
+     * Postcondition:
+     * The deadlines that passed while the subscriber was busy are skipped and
+     * counted, so the ticks after the late one keep a tick apart and the run ends
+     * later by the skipped slots.
+     */
+    @Test
+    void testSkipDropsMissedDeadlines() throws InterruptedException {
+        SimulationContext context = new SimulationContext();
+        long[] arrivals = runWithSlowSubscriber(context, MissedTickPolicy.SKIP);
+
+        long span = arrivals[DURATION] - arrivals[2];
+        assertTrue(span >= (DURATION - 2) * TICK_NANOS + TICK_NANOS, "run took " + span + " ns");
+        for (int tick = SLOW_TICK + 3; tick <= DURATION; tick++) {
+            assertTrue(arrivals[tick] - arrivals[tick - 1] > TICK_NANOS / 2, "tick " + tick + " came in a burst");
+        }
+
+        Map<String, Object> jitter = context.getStatisticalFolder().getTickJitter();
+        assertEquals(DURATION - 2, jitter.get("count"));
+        assertTrue((Long) jitter.get("skippedDeadlines") >= 2L);
+    }
+
+    /**
+     * Precondition:
+     * A StatisticalFolder records the jitter of 100 ticks, late by 1 to 100 ns in
+     * shuffled order, and a skipped deadline.
+     *
+     * Postcondition:
+     * The summary written to tick_jitter.json holds the count, mean, nearest-rank
+     * p50 and p99, max and the skipped deadlines; with no ticks it holds only the
+     * count and the skipped deadlines.
+     */
+    @Test
+    void testTickJitterSummary() {
+        StatisticalFolder folder = new StatisticalFolder();
+        JsonObject empty = new Gson().toJsonTree(folder.getTickJitter()).getAsJsonObject();
+        assertEquals(0, empty.get("count").getAsInt());
+        assertFalse(empty.has("p50Nanos"));
+        assertEquals(0, empty.get("skippedDeadlines").getAsLong());
+
+        for (int i = 0; i < 100; i++) {
+            folder.recordTickJitter((i * 37) % 100 + 1);
+        }
+        folder.addSkippedTickDeadlines(1);
+        JsonObject summary = new Gson().toJsonTree(folder.getTickJitter()).getAsJsonObject();
+        assertEquals(100, summary.get("count").getAsInt());
+        assertEquals(50, summary.get("meanNanos").getAsLong());
+        assertEquals(50, summary.get("p50Nanos").getAsLong());
+        assertEquals(99, summary.get("p99Nanos").getAsLong());
+        assertEquals(100, summary.get("maxNanos").getAsLong());
+        assertEquals(1, summary.get("skippedDeadlines").getAsLong());
+    }
+
+    /**
+     * Postcondition:
+     * Policy names are read as written in the configuration, in any case.
+     */
+    @Test
+    void testMissedTickPolicyNames() {
+        assertEquals(MissedTickPolicy.CATCH_UP, MissedTickPolicy.forName("catch-up"));
+        assertEquals(MissedTickPolicy.SKIP, MissedTickPolicy.forName("SKIP"));
+        assertThrows(IllegalArgumentException.class, () -> MissedTickPolicy.forName("drop"));
+    }
+
+    /**
+     * Runs a TimeService for {@link #DURATION} ticks next to a subscriber that is
+     * slow on {@link #SLOW_TICK}.
+     * <p>
+     * @return the time each tick reached the subscriber, by tick.
+     */
+    private static long[] runWithSlowSubscriber(SimulationContext context, MissedTickPolicy policy) throws InterruptedException {
+        MessageBusImpl bus = context.getMessageBus();
+        bus.enableBroadcastChannel(TickBroadcast.class, 1);
+        context.getSensorMonitor().addSensor("slow");
+        long[] arrivals = new long[DURATION + 2];
+        MicroService subscriber = new MicroService("Slow", bus) {
+            @Override
+            protected void initialize() {
+                subscribeBroadcast(TickBroadcast.class, tick -> {
+                    arrivals[tick.getTick()] = System.nanoTime();
+                    if (tick.getTick() == SLOW_TICK) {
+                        try {
+                            Thread.sleep(SLOW_MILLIS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+                subscribeBroadcast(TerminatedBroadcast.class, terminated -> terminate());
+            }
+        };
+        Thread subscriberThread = new Thread(subscriber);
+        subscriberThread.start();
+        bus.awaitReady(1);
+        Thread timer = new Thread(new TimeService(TICK_NANOS, DURATION, context, ClockMode.REALTIME, policy));
+        timer.start();
+        timer.join(10000);
+        subscriberThread.join(10000);
+        assertFalse(timer.isAlive());
+        assertFalse(subscriberThread.isAlive());
+        return arrivals;
+    }
+}